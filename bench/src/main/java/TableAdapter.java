@@ -0,0 +1,40 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.LinkedList;
+
+import benchmarks.TableTarget;
+
+/**
+ * Exposes DBTable to the benchmarks package.
+ */
+public class TableAdapter implements TableTarget
+{
+
+	private DBTable table;
+
+	public void create(String filename, int fieldLengths[], int blockSize)
+	{
+		table = new DBTable(filename, fieldLengths, blockSize);
+	}
+
+	public boolean insert(int key, char fields[][])
+	{
+		return table.insert(key, fields);
+	}
+
+	public LinkedList<String> search(int key)
+	{
+		return table.search(key);
+	}
+
+	public LinkedList<LinkedList<String>> rangeSearch(int low, int high)
+	{
+		return table.rangeSearch(low, high);
+	}
+
+	public void close()
+	{
+		table.close();
+	}
+}
\ No newline at end of file
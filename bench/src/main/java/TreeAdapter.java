@@ -0,0 +1,45 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.LinkedList;
+
+import benchmarks.TreeTarget;
+
+/**
+ * Exposes BTree to the benchmarks package.
+ */
+public class TreeAdapter implements TreeTarget
+{
+
+	private BTree tree;
+
+	public void create(String filename, int blockSize)
+	{
+		tree = new BTree(filename, blockSize);
+	}
+
+	public boolean insert(int key, long addr)
+	{
+		return tree.insert(key, addr);
+	}
+
+	public long search(int key)
+	{
+		return tree.search(key);
+	}
+
+	public LinkedList<Long> rangeSearch(int low, int high)
+	{
+		return tree.rangeSearch(low, high);
+	}
+
+	public long remove(int key)
+	{
+		return tree.remove(key);
+	}
+
+	public void close()
+	{
+		tree.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+/**
+ * @author Lucas Rappette
+ */
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per BTree.insert while filling an empty tree, with keys in ascending,
+ * descending and random order like the t2 and t3 inserts of h6b.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BTreeInsertBenchmark
+{
+
+	private static final int KEYS = 10000;
+
+	@Param({"60", "132", "4096", "16384"})
+	private int blockSize;
+
+	@Param({"sequential", "reverse", "random"})
+	private String order;
+
+	private int keys[];
+	private String name;
+	private TreeTarget tree;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		keys = Targets.keys(order, KEYS);
+		name = Targets.tempName("bench-insert");
+	}
+
+	@Setup(Level.Invocation)
+	public void create()
+	{
+		tree = Targets.tree();
+		tree.create(name, blockSize);
+	}
+
+	@TearDown(Level.Invocation)
+	public void close()
+	{
+		tree.close();
+		Targets.delete(name);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(KEYS)
+	public void insert()
+	{
+		for (int k : keys)
+		{
+			tree.insert(k, k + 1);
+		}
+	}
+}
\ No newline at end of file
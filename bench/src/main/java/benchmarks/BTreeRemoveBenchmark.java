@@ -0,0 +1,73 @@
+/**
+ * @author Lucas Rappette
+ */
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to remove a random key and insert it again, so the tree keeps its size
+ * while nodes keep splitting, borrowing and merging.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BTreeRemoveBenchmark
+{
+
+	private static final int KEYS = 100000;
+	private static final int PROBES = 1 << 16;
+
+	@Param({"60", "132", "4096", "16384"})
+	private int blockSize;
+
+	private String name;
+	private TreeTarget tree;
+	private int probes[];
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		name = Targets.tempName("bench-remove");
+		tree = Targets.loadedTree(name, blockSize, KEYS);
+		probes = new int[PROBES];
+		int order[] = Targets.keys("random", KEYS);
+		for (int i = 0; i < PROBES; i++)
+		{
+			probes[i] = order[i % KEYS];
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		tree.close();
+		Targets.delete(name);
+	}
+
+	@Benchmark
+	public boolean removeInsert()
+	{
+		int k = probes[next++ & (PROBES - 1)];
+		tree.remove(k);
+		return tree.insert(k, k + 1);
+	}
+}
\ No newline at end of file
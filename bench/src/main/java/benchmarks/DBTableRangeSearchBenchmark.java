@@ -0,0 +1,79 @@
+/**
+ * @author Lucas Rappette
+ */
+package benchmarks;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end DBTable.rangeSearch over ranges holding a given fraction of the rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBTableRangeSearchBenchmark
+{
+
+	private static final int ROWS = 20000;
+	private static final int RANGES = 1 << 10;
+	private static final int FIELDS[] = {8, 16};
+
+	@Param({"60", "132", "4096", "16384"})
+	private int blockSize;
+
+	@Param({"0.0001", "0.01", "0.1"})
+	private double selectivity;
+
+	private String name;
+	private TableTarget table;
+	private int lows[];
+	private int width;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		name = Targets.tempName("bench-table-range");
+		table = Targets.loadedTable(name, FIELDS, blockSize, ROWS);
+		width = Math.max(1, (int) (ROWS * selectivity));
+		lows = new int[RANGES];
+		Random r = new Random(1000);
+		for (int i = 0; i < RANGES; i++)
+		{
+			lows[i] = r.nextInt(ROWS - width + 1);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		table.close();
+		Targets.delete(name);
+	}
+
+	@Benchmark
+	public LinkedList<LinkedList<String>> rangeSearch()
+	{
+		int low = lows[next++ & (RANGES - 1)];
+		return table.rangeSearch(low, low + width - 1);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+/**
+ * @author Lucas Rappette
+ */
+package benchmarks;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end DBTable.search, the B Tree lookup plus reading the row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBTableSearchBenchmark
+{
+
+	private static final int ROWS = 20000;
+	private static final int PROBES = 1 << 14;
+	private static final int FIELDS[] = {8, 16};
+
+	@Param({"60", "132", "4096", "16384"})
+	private int blockSize;
+
+	private String name;
+	private TableTarget table;
+	private int probes[];
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		name = Targets.tempName("bench-table");
+		table = Targets.loadedTable(name, FIELDS, blockSize, ROWS);
+		probes = new int[PROBES];
+		int order[] = Targets.keys("random", ROWS);
+		for (int i = 0; i < PROBES; i++)
+		{
+			probes[i] = order[i % ROWS];
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		table.close();
+		Targets.delete(name);
+	}
+
+	@Benchmark
+	public LinkedList<String> search()
+	{
+		return table.search(probes[next++ & (PROBES - 1)]);
+	}
+}
\ No newline at end of file
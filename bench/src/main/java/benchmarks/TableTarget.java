@@ -0,0 +1,22 @@
+/**
+ * @author Lucas Rappette
+ */
+package benchmarks;
+
+import java.util.LinkedList;
+
+/**
+ * The DBTable operations the benchmarks measure, see TreeTarget.
+ */
+public interface TableTarget
+{
+	public void create(String filename, int fieldLengths[], int blockSize);
+
+	public boolean insert(int key, char fields[][]);
+
+	public LinkedList<String> search(int key);
+
+	public LinkedList<LinkedList<String>> rangeSearch(int low, int high);
+
+	public void close();
+}
\ No newline at end of file
@@ -0,0 +1,154 @@
+/**
+ * @author Lucas Rappette
+ */
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Creates the targets and test data shared by the benchmarks.
+ */
+public final class Targets
+{
+
+	private Targets()
+	{
+
+	}
+
+	public static TreeTarget tree()
+	{
+		return (TreeTarget) load("TreeAdapter");
+	}
+
+	public static TableTarget table()
+	{
+		return (TableTarget) load("TableAdapter");
+	}
+
+	private static Object load(String name)
+	{
+		try
+		{
+			return Class.forName(name).newInstance();
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("Cannot load " + name, e);
+		}
+	}
+
+	/**
+	 * Creates a BTree holding keys 0 to n-1, inserted in random order. The address of each key is key+1.
+	 */
+	public static TreeTarget loadedTree(String name, int blockSize, int n)
+	{
+		TreeTarget tree = tree();
+		tree.create(name, blockSize);
+		for (int k : keys("random", n))
+		{
+			tree.insert(k, k + 1);
+		}
+		return tree;
+	}
+
+	/**
+	 * Creates a DBTable holding keys 0 to n-1, inserted in random order
+	 */
+	public static TableTarget loadedTable(String name, int fieldLengths[], int blockSize, int n)
+	{
+		TableTarget table = table();
+		table.create(name, fieldLengths, blockSize);
+		for (int k : keys("random", n))
+		{
+			table.insert(k, fields(fieldLengths, k));
+		}
+		return table;
+	}
+
+	/**
+	 * @param prefix The start of the file name
+	 * @return A new file name, without extension, in the temporary directory
+	 */
+	public static String tempName(String prefix)
+	{
+		try
+		{
+			File f = File.createTempFile(prefix, "");
+			f.delete();
+			return f.getPath();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Deletes the .tree, .table and .wal files of a name returned by tempName
+	 */
+	public static void delete(String name)
+	{
+		new File(name + ".tree").delete();
+		new File(name + ".table").delete();
+		new File(name + ".wal").delete();
+	}
+
+	/**
+	 * Returns n distinct keys in the given order
+	 * @param order "sequential" for 0 to n-1, "reverse" for n-1 down to 0,
+	 * "random" for the same keys shuffled with a fixed seed
+	 */
+	public static int[] keys(String order, int n)
+	{
+		int keys[] = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			keys[i] = i;
+		}
+		if (order.equals("reverse"))
+		{
+			for (int i = 0; i < n; i++)
+			{
+				keys[i] = n - 1 - i;
+			}
+		}
+		else if (order.equals("random"))
+		{
+			shuffle(keys, new Random(1000));
+		}
+		else if (!order.equals("sequential"))
+		{
+			throw new IllegalArgumentException("Unknown key order " + order);
+		}
+		return keys;
+	}
+
+	public static void shuffle(int keys[], Random r)
+	{
+		for (int i = keys.length - 1; i > 0; i--)
+		{
+			int j = r.nextInt(i + 1);
+			int t = keys[i];
+			keys[i] = keys[j];
+			keys[j] = t;
+		}
+	}
+
+	/**
+	 * @return The fields of a row, each padded to its length like the drivers do
+	 */
+	public static char[][] fields(int fieldLengths[], int key)
+	{
+		char f[][] = new char[fieldLengths.length][];
+		for (int i = 0; i < f.length; i++)
+		{
+			f[i] = new char[fieldLengths[i]];
+			String s = Integer.toString(key);
+			s.getChars(0, Math.min(s.length(), f[i].length), f[i], 0);
+		}
+		return f;
+	}
+}
\ No newline at end of file
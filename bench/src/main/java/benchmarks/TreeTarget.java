@@ -0,0 +1,25 @@
+/**
+ * @author Lucas Rappette
+ */
+package benchmarks;
+
+import java.util.LinkedList;
+
+/**
+ * The BTree operations the benchmarks measure. BTree is in the default package, which
+ * a named package cannot import, so the benchmarks reach it through this interface.
+ */
+public interface TreeTarget
+{
+	public void create(String filename, int blockSize);
+
+	public boolean insert(int key, long addr);
+
+	public long search(int key);
+
+	public LinkedList<Long> rangeSearch(int low, int high);
+
+	public long remove(int key);
+
+	public void close();
+}
\ No newline at end of file
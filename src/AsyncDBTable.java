@@ -0,0 +1,83 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the calls of a DBTable on an Executor and hands back CompletableFutures, so a caller
+ * can start many lookups at once and wait for them together. Lookups read the table with
+ * positional reads and B Tree nodes missing from the cache outside the cache's lock, so
+ * lookups of different rows overlap their I/O. Inserts and removes still run one at a time.
+ *
+ * On a JVM with virtual threads, pass Executors.newVirtualThreadPerTaskExecutor(). Lookups
+ * hold no monitor while they read a file, so they leave their carrier thread free while they
+ * wait, except when a block the cache evicts has to be written back first.
+ */
+public class AsyncDBTable
+{
+
+	private DBTable table;
+	private Executor executor;
+
+	/**
+	 * @param t The table to run calls on, still usable directly
+	 * @param e Runs each call, the number of calls it runs at once bounds how many lookups
+	 * overlap
+	 */
+	public AsyncDBTable(DBTable t, Executor e)
+	{
+		table = t;
+		executor = e;
+	}
+
+	/**
+	 * @return A future of what DBTable.search returns
+	 */
+	public CompletableFuture<LinkedList<String>> search(long key)
+	{
+		return CompletableFuture.supplyAsync(() -> table.search(key), executor);
+	}
+
+	/**
+	 * @return A future of what DBTable.searchMany returns
+	 */
+	public CompletableFuture<LinkedList<LinkedList<String>>> searchMany(long keys[])
+	{
+		return CompletableFuture.supplyAsync(() -> table.searchMany(keys), executor);
+	}
+
+	/**
+	 * @return A future of what DBTable.rangeSearch returns
+	 */
+	public CompletableFuture<LinkedList<LinkedList<String>>> rangeSearch(long low, long high)
+	{
+		return CompletableFuture.supplyAsync(() -> table.rangeSearch(low, high), executor);
+	}
+
+	/**
+	 * @return A future of what DBTable.insert returns, completed exceptionally if key is not
+	 * a key of the table's KeySchema
+	 */
+	public CompletableFuture<Boolean> insert(long key, char fields[][])
+	{
+		return CompletableFuture.supplyAsync(() -> table.insert(key, fields), executor);
+	}
+
+	/**
+	 * @return A future of what DBTable.remove returns
+	 */
+	public CompletableFuture<Boolean> remove(long key)
+	{
+		return CompletableFuture.supplyAsync(() -> table.remove(key), executor);
+	}
+
+	/**
+	 * @return The table calls run on
+	 */
+	public DBTable getTable()
+	{
+		return table;
+	}
+}
\ No newline at end of file
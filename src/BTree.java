@@ -1,35 +1,103 @@
 /**
  * @author Lucas Rappette
  */
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Stack;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A B+ tree of int or long keys stored in a file. Any number of threads may search, rangeSearch
+ * and use cursors while one thread at a time inserts or removes.
+ */
 public class BTree 
 {
 
+	public static final int DEFAULT_CACHE_PAGES = 64;
+	private static final int HEADER_SIZE = 20; //root, free and blockSize
+	private static final int FORMAT_VERSION = 1; //Stored in the high byte of blockSize. 1 added leaf links
+	private static final int LONG_KEYS = 1 << 23; //Set in blockSize when keys are stored in 8 bytes
+
 	private RandomAccessFile f;
+	private FileChannel channel; //Positional I/O on f, the file pointer is never used
+	private BlockStore blocks; //All node reads and writes go through the block store
+	private PageCache cache; //Same as blocks, null when the file is memory mapped
 	private int order;
 	private int blockSize;
-	private long root;
-	private long free;
-	private Stack<BTreeNode> path;
-	private Stack<Long> pathAddresses;
-	private int padding;
+	private int keySize; //Bytes per key in a node, 4 or 8
+	private volatile long root; //Guarded by the latch on address 0
+	private FreeSpaceMap freeBlocks; //Free blocks, the lowest is the head of the free list in the header
+	private Stack<BTreeNode> path = new Stack<BTreeNode>(); //Path of the current insert or remove
+	private LongStack pathAddresses = new LongStack();
+	private LongStack pathSlots = new LongStack(); //Child followed in each node of path, key index in the leaf
 	private int minKeys;
 	
+	//Readers run in parallel and latch nodes hand over hand on the way down. Writers run one
+	//at a time and write latch the nodes they may change. Address 0 latches the root pointer.
+	private LatchTable latches = new LatchTable();
+	private ReentrantLock writer = new ReentrantLock();
+	private LongStack held = new LongStack(); //Write latches held by the writer
+	private LongStack releasable = new LongStack(); //Held ancestors the current operation won't change
+	private double splitBias = 0.5; //Fraction of keys kept left when a node splits past its last key
+	private long splitKeys[]; //Scratch for splitNode, the keys of a full node plus one
+	private long splitChildren[];
+	private long splitKey; //Median the last split pushed up, the smallest key under the new node
+	private volatile long structureVersion; //Bumped by every split, merge and borrow
+	private WriteAheadLog log; //Set by the owning DBTable, null when writes are not logged
+	private byte logFile = WriteAheadLog.TREE; //Which of the table's files this is in the log
+	private LongAdder nodeReads = new LongAdder(); //Blocks read from the block store, cached or not
+	private LongAdder nodeWrites = new LongAdder();
+	private LongAdder splits = new LongAdder();
+	private LongAdder merges = new LongAdder();
+	private LongAdder borrows = new LongAdder();
+	private Metrics metrics; //Latencies of insert, search, remove, rangeSearch and searchMany
+	
 	public BTree(String filename, int bsize) 
+	{
+		this(filename, bsize, false);
+	}
+	
+	/**
+	 * Creates a new BTree file
+	 * @param filename The name of the file without the .tree extension
+	 * @param bsize The number of bytes in each BTreeNode
+	 * @param mapped true to memory map the file, false to read it through a page cache
+	 */
+	public BTree(String filename, int bsize, boolean mapped) 
+	{
+		this(filename, bsize, 4, mapped);
+	}
+	
+	/**
+	 * Creates a new BTree file
+	 * @param filename The name of the file without the .tree extension
+	 * @param bsize The number of bytes in each BTreeNode
+	 * @param kSize The number of bytes to store each key in, 4 for int keys or 8 for long keys
+	 * @param mapped true to memory map the file, false to read it through a page cache
+	 * @throws IllegalArgumentException if kSize is not 4 or 8
+	 */
+	public BTree(String filename, int bsize, int kSize, boolean mapped) 
 	{ 	//All BTreeNodes will use bsize bytes
+		if (kSize != 4 && kSize != 8)
+		{
+			throw new IllegalArgumentException("Keys are 4 or 8 bytes");
+		}
 		root = 0;
-		free = 0;
 		blockSize = bsize;
-		order = blockSize/12;
-		padding = blockSize%12;
-		minKeys = (order/2) - 1;
+		keySize = kSize;
+		freeBlocks = new FreeSpaceMap(HEADER_SIZE, blockSize);
+		order = blockSize/(keySize + 8);
+		minKeys = Math.max((order/2) - 1, 1); //A node always keeps a key
+		splitKeys = new long[order];
+		splitChildren = new long[order + 1];
+		metrics = new Metrics(filename + ".tree");
 		try
 		{
 			File target = new File(filename + ".tree");
@@ -40,10 +108,10 @@ public class BTree
 			target.createNewFile();
 			
 			f = new RandomAccessFile(target, "rw");
-			f.seek(0);
-			f.writeLong(root);
-			f.writeLong(free);
-			f.writeInt(bsize);
+			channel = f.getChannel();
+			writeHeader();
+			openBlocks(mapped);
+			metrics.register("BTree", new Monitor());
 		}
 		catch(IOException e)
 		{
@@ -52,8 +120,19 @@ public class BTree
 	}
 
 	public BTree(String filename) 
+	{
+		this(filename, false);
+	}
+	
+	/**
+	 * Opens an existing BTree file
+	 * @param filename The name of the file without the .tree extension
+	 * @param mapped true to memory map the file, false to read it through a page cache
+	 */
+	public BTree(String filename, boolean mapped) 
 	{
 		File target = new File(filename + ".tree");
+		metrics = new Metrics(filename + ".tree");
 		try
 		{
 			if (!target.exists())
@@ -61,15 +140,33 @@ public class BTree
 				//Do not initialize, BTree File associated with calling DBtable DNE.
 				throw new IOException();
 			}
+			WriteAheadLog.recover(filename);
 			f = new RandomAccessFile(target, "rw");
-			f.seek(0);
-			root = f.readLong();
-			free = f.readLong();
-			blockSize = f.readInt();
-			padding = blockSize%12;
-			order = blockSize/12;
-			minKeys = (order/2) - 1;
-				
+			channel = f.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining())
+			{
+				if (channel.read(header, header.position()) < 0)
+					throw new IOException();
+			}
+			header.flip();
+			root = header.getLong();
+			long free = header.getLong();
+			int sizeAndVersion = header.getInt();
+			blockSize = sizeAndVersion & (LONG_KEYS - 1);
+			freeBlocks = new FreeSpaceMap(HEADER_SIZE, blockSize);
+			keySize = (sizeAndVersion & LONG_KEYS) != 0 ? 8 : 4;
+			order = blockSize/(keySize + 8);
+			minKeys = Math.max((order/2) - 1, 1); //A node always keeps a key
+			splitKeys = new long[order];
+			splitChildren = new long[order + 1];
+			openBlocks(mapped);
+			if ((sizeAndVersion >>> 24) < FORMAT_VERSION)
+			{
+				linkLeaves();
+			}
+			loadFreeList(free);
+			metrics.register("BTree", new Monitor());
 		}
 		catch(IOException e)
 		{
@@ -79,19 +176,65 @@ public class BTree
 		
 	}
 	
+	/**
+	 * Sets up the block store used for node reads and writes
+	 * @param mapped true to memory map the file, false to use a page cache
+	 * @throws IOException
+	 */
+	private void openBlocks(boolean mapped) throws IOException
+	{
+		if (mapped)
+		{
+			blocks = new MappedBlockStore(channel, HEADER_SIZE, blockSize);
+		}
+		else
+		{
+			cache = new PageCache(channel, blockSize, DEFAULT_CACHE_PAGES);
+			blocks = cache;
+		}
+	}
+	
 	/**
 	 * Inserts B Tree data in to the BTree
 	 * @param key the key of the data to be inserted
 	 * @param addr the address in the DBTable where the data is stored
 	 * @return true if key is not a duplicate in BTree and is inserted
 	 * @return false if key is a duplicate (key not inserted)
+	 * @throws IllegalArgumentException if the BTree stores int keys and key is not an int
+	 */
+	public boolean insert(long key, long addr) 
+	{
+		checkKey(key);
+		long start = metrics.start();
+		boolean inserted;
+		long lsn;
+		writer.lock();
+		try
+		{
+			begin();
+			inserted = insertAux(key, addr);
+		}
+		finally
+		{
+			lsn = end();
+			unlatchAll();
+			writer.unlock();
+		}
+		commit(lsn);
+		metrics.end(Metrics.INSERT, start, key);
+		return inserted;
+	}
+	
+	/**
+	 * Inserts B Tree data in to the BTree. The caller holds the writer lock.
+	 * Reads only the path to the leaf, a split hands its median up in memory.
 	 */
-	public boolean insert(int key, long addr) 
+	private boolean insertAux(long key, long addr)
 	{
 		boolean split = true;
 		BTreeNode node;
 		long nodeAddr;
-		if (search(key) == 0) //Key not found, so add key
+		if (descend(key, true) == 0) //Key not found, so add key
 		{
 			while(!path.empty() && split)
 			{
@@ -107,13 +250,7 @@ public class BTree
 				else
 				{
 					addr = splitNode(node, nodeAddr, key, addr); //new address to insert
-					node = new BTreeNode(nodeAddr);
-					node = new BTreeNode(addr);
-					
-					while(!node.isLeaf)
-						node = new BTreeNode(node.children[0]); //Move to medianKey
-						
-					key = node.keys[0]; //New key to insert (medianKey)
+					key = splitKey; //New key to insert (medianKey)
 				}
 			}
 			if (split) //Root was split.
@@ -121,12 +258,12 @@ public class BTree
 				BTreeNode newRoot;
 				if (root == 0) //No Root exists, first insert, and first node.
 				{
-					newRoot = new BTreeNode(0, new int[order-1], new long[order]);
+					newRoot = new BTreeNode(0, new long[order-1], new long[order]);
 					insertVal(newRoot, key, addr);
 				}
 				else
 				{
-					newRoot = new BTreeNode(1, new int[order -1], new long[order]);
+					newRoot = new BTreeNode(1, new long[order-1], new long[order]);
 					newRoot.children[0] = root;
 					newRoot.keys[0] = key;
 					newRoot.children[1] = addr;
@@ -140,744 +277,2190 @@ public class BTree
 	}
 	
 	/**
-	 * Splits a BTreeNode. Median key is the first key in newNode. Updates both nodes
-	 * @param node The node to be split
-	 * @param nodeAddr The address of the node to be split
-	 * @param key The key to be included in the split.
-	 * @param DBaddr The data associated with the key to be included in split
-	 * @return The address where the medianKey can be found relative to the child.
+	 * Inserts a batch of keys. The keys are sorted and every run of keys that lands in
+	 * the same leaf is added to that leaf in memory after a single descent, then the leaf
+	 * is written once. Keys that need a split fall back to insert.
+	 * @param keys The keys to insert
+	 * @param addrs The DBTable address of each key
+	 * @return For each key, true if it was inserted, false if it is a duplicate.
+	 * Of keys repeated within the batch only the first is inserted
+	 * @throws IllegalArgumentException if the BTree stores int keys and a key is not an int
 	 */
-	private long splitNode(BTreeNode node, long nodeAddr, int key, long DBaddr) 
+	public boolean[] insertBatch(long[] keys, long[] addrs)
 	{
-		//Splits node and returns the new address to be used in splitting
-		long returnAddr = 0;
-		BTreeNode newNode;
-		BTreeNode oldNode;
-		ArrayList<Integer> keys = new ArrayList<Integer>();
-		int medianKey;
-		
-		if (node.isLeaf)
+		for (long key : keys)
 		{
-			newNode = new BTreeNode(-1 * ((order+1)/2), new int[order-1], new long [order]);
-			oldNode = new BTreeNode(-1 * (((order)/2)), new int[order-1], new long[order]);
+			checkKey(key);
 		}
-		else
+		boolean inserted[];
+		long lsn;
+		writer.lock();
+		try
 		{
-			newNode = new BTreeNode((((order+1)/2)- 1), new int[order-1], new long[order]);
-			oldNode = new BTreeNode((((order)/2)), new int[order-1], new long[order]);
+			begin();
+			inserted = insertBatchAux(keys, addrs);
 		}
+		finally
+		{
+			lsn = end();
+			unlatchAll();
+			writer.unlock();
+		}
+		commit(lsn);
+		return inserted;
+	}
+	
+	/**
+	 * Inserts a batch of keys. The caller holds the writer lock.
+	 */
+	private boolean[] insertBatchAux(long[] keys, long[] addrs)
+	{
+		boolean inserted[] = new boolean[keys.length];
+		int sorted[] = sortByKey(keys); //Positions in the batch, by key then by position
 		
-		keys.add(key);
-		for (int k : node.keys)
-			keys.add(k);
-		Collections.sort(keys);
-		medianKey = keys.get(keys.size()/2);
-		int keyToInsert;
-		long addressToInsert = 0;
-		
-		for (int i = 0; i < keys.size(); i++)
+		int i = 0;
+		while (i < sorted.length)
 		{
-			keyToInsert = keys.get(i);
-			
-			if (keyToInsert == key)
+			int pos = sorted[i];
+			if (i > 0 && keys[pos] == keys[sorted[i-1]])
 			{
-				addressToInsert = DBaddr;
+				i++; //Repeated within the batch
+				continue;
 			}
-			else
+			if (root == 0)
 			{
-				for (int j = 0; j < Math.abs(node.count); j++)
-				{
-					if (node.keys[j] == keyToInsert)
-					{
-						if (node.isLeaf)
-						{
-							addressToInsert = node.children[j];
-						}
-						else
-							addressToInsert = node.children[j+1];
-						
-						break;
-					}
-				}
+				inserted[pos] = insertAux(keys[pos], addrs[pos]);
+				unlatchAll();
+				i++;
+				continue;
 			}
 			
-			if (keyToInsert < medianKey) //Insert Key in Old Node
+			//Descend once, remembering the smallest key that belongs to a later leaf
+			long leafAddr = root;
+			BTreeNode leaf = new BTreeNode(root);
+			boolean bounded = false;
+			long bound = 0;
+			while (!leaf.isLeaf)
 			{
-				oldNode.keys[i] = keyToInsert;
-				if (!oldNode.isLeaf)
-				{
-					if (oldNode.children[0] == 0)
-					{
-						oldNode.children[0] = node.children[0];
-					}
-					
-					oldNode.children[i+1] = addressToInsert;
-				}
-				else
+				int c = upperBound(leaf.keys, leaf.count, keys[pos]);
+				if (c < leaf.count && (!bounded || leaf.keys[c] < bound))
 				{
-					oldNode.children[i] = addressToInsert;
+					bounded = true;
+					bound = leaf.keys[c];
 				}
+				leafAddr = leaf.children[c];
+				leaf = new BTreeNode(leafAddr);
 			}
-			else if (keyToInsert == medianKey)
+			
+			boolean changed = false;
+			while (i < sorted.length)
 			{
-				if (newNode.isLeaf)
+				pos = sorted[i];
+				long key = keys[pos];
+				if (bounded && key >= bound)
+					break; //Belongs to a later leaf
+				if (i > 0 && key == keys[sorted[i-1]])
 				{
-					newNode.keys[0] = medianKey;
-					newNode.children[0] = addressToInsert;
+					i++;
+					continue;
 				}
-				else
+				if (indexOf(leaf.keys, Math.abs(leaf.count), key) >= 0)
 				{
-					newNode.children[0] = addressToInsert;
+					i++;
+					continue;
 				}
+				if (Math.abs(leaf.count) == leaf.keys.length)
+					break; //Full, the next key has to split it
+				insertVal(leaf, key, addrs[pos]);
+				inserted[pos] = true;
+				changed = true;
+				i++;
 			}
-			else //if(keyToInsert > medianKey) //Insert Key into newNode
+			if (changed)
 			{
-				if (!newNode.isLeaf)
-				{	
-					newNode.keys[i-Math.abs(oldNode.count) - 1] = keyToInsert;
-					newNode.children[(i-Math.abs(oldNode.count))] = addressToInsert;
-				}
-				else
-				{
-					newNode.keys[i-Math.abs(oldNode.count)] = keyToInsert;
-					newNode.children[i-Math.abs(oldNode.count)] = addressToInsert;
-				}
+				writeNode(leafAddr, leaf);
+				unlatchAll();
+			}
+			if (i < sorted.length && Math.abs(leaf.count) == leaf.keys.length
+					&& (!bounded || keys[sorted[i]] < bound))
+			{
+				pos = sorted[i];
+				inserted[pos] = insertAux(keys[pos], addrs[pos]);
+				unlatchAll();
+				i++;
 			}
 		}
-		
-		node = oldNode;
-		writeNode(nodeAddr, node);
-		returnAddr = getFree();
-		writeNode(returnAddr, newNode);
-		return returnAddr;
+		return inserted;
 	}
 	
 	/**
-	 * Inserts data into a BTreeNode in sorted order. Does not update node.
-	 * @param node The BTreeNode
-	 * @param keyThe key to be inserted into node
-	 * @param addr The address to be inserted into node.
+	 * Stable merge sort of the positions of keys
+	 * @return The positions 0 to keys.length-1 ordered by key, equal keys in position order
 	 */
-	private void insertVal(BTreeNode node, int key, long addr)
+	private static int[] sortByKey(long keys[])
 	{
-		//Insert into node in sorted Order
-		int pos = Math.abs(node.count);
-		for(int i = Math.abs(node.count) - 1; i >= 0; i--)
-		{
-			if(node.keys[i] > key)
-			{
-				pos = i;
-				node.keys[i+1] = node.keys[i];
-				if (node.isLeaf)
-					node.children[i+1] = node.children[i];
-				else
-					node.children[i+2] = node.children[i+1];	
-			}
-		}
-		
-		if (node.isLeaf)
+		int sorted[] = new int[keys.length];
+		int scratch[] = new int[keys.length];
+		for (int i = 0; i < sorted.length; i++)
 		{
-			node.children[pos] = addr;
-			node.count--;
+			sorted[i] = i;
 		}
-		else //Node is a leaf
+		for (int width = 1; width < sorted.length; width *= 2)
 		{
-			if(pos == 0)
+			for (int start = 0; start < sorted.length; start += 2*width)
 			{
-				BTreeNode temp = new BTreeNode(node.children[pos]);
-				if (temp.keys[0] >= key)
+				int mid = Math.min(start + width, sorted.length);
+				int end = Math.min(start + 2*width, sorted.length);
+				int a = start;
+				int b = mid;
+				for (int out = start; out < end; out++)
 				{
-					node.children[pos + 1] = node.children[0];
-					node.children[pos] = addr;
+					if (b >= end || (a < mid && keys[sorted[a]] <= keys[sorted[b]]))
+						scratch[out] = sorted[a++];
+					else
+						scratch[out] = sorted[b++];
 				}
-				else
-					node.children[pos + 1] = addr;
 			}
-			else
-				node.children[pos + 1] = addr;
-			
-			node.count++;
+			int swap[] = sorted;
+			sorted = scratch;
+			scratch = swap;
 		}
-		
-		node.keys[pos] = key;
+		return sorted;
 	}
 	
 	/**
-	 * Builds Stack path and pathAddresses. Returns DBTable address from key
-	 * @param k the key to be searched for
-	 * @return	The address associated with the key, otherwise return 0
+	 * Builds the BTree bottom up from keys in ascending order. Leaves are written first,
+	 * in key order, then each level of non-leaves above them.
+	 * @param source The keys and DBTable addresses to load, in ascending key order
+	 * @param fillFactor The fraction of each node to fill, between 0 and 1
+	 * @return The number of keys loaded. Repeated keys are only loaded once
+	 * @throws IllegalStateException if the BTree is not empty
+	 * @throws IllegalArgumentException if the keys are not in ascending order, or the BTree
+	 * stores int keys and a key is not an int
 	 */
-	public long search(int k) 
+	public long bulkLoad(KeySource source, double fillFactor)
 	{
-		//Return DBTable "row" address associated with key otherwise return 0.
-		//Make a new stack every search.
-		path = new Stack<BTreeNode>();
-		pathAddresses = new Stack<Long>();
-		if (root == 0)
+		long loaded;
+		long lsn;
+		writer.lock();
+		try
 		{
-			return 0;
+			begin();
+			loaded = bulkLoadAux(source, fillFactor);
 		}
-		else
+		finally
 		{
-			pathAddresses.push(root);
-			return searchAux(new BTreeNode(root), k);
+			lsn = end();
+			unlatchAll();
+			writer.unlock();
 		}
+		commit(lsn);
+		return loaded;
 	}
 	
 	/**
-	 * Recursively searches the subTree for the key
-	 * @param subTree 
-	 * @param key
-	 * @return
+	 * Builds the BTree bottom up. The caller holds the writer lock.
 	 */
-	private long searchAux(BTreeNode subTree, int key) 
+	private long bulkLoadAux(KeySource source, double fillFactor)
 	{
-		path.push(subTree);
-		for (int j = 0; j < Math.abs(subTree.count); j++)
+		if (root != 0)
 		{
-			if (key < subTree.keys[j] && !subTree.isLeaf)
-			{
-				pathAddresses.push(subTree.children[j]);
-				return searchAux(new BTreeNode(subTree.children[j]), key);
-			}
-			else if (key >= subTree.keys[j] && !subTree.isLeaf &&
-					(j == (Math.abs(subTree.count)) - 1) )
+			throw new IllegalStateException("bulkLoad requires an empty BTree");
+		}
+		int leafKeys = Math.max(Math.max(minKeys, 1), Math.min(order - 1, (int) (fillFactor * (order - 1))));
+		int nodeChildren = Math.max(Math.max(minKeys + 1, 2), Math.min(order, (int) (fillFactor * order)));
+		
+		//First key and address of every leaf, the entries of the level above the leaves
+		long levelKeys[] = new long[16];
+		long levelAddrs[] = new long[16];
+		int levelSize = 0;
+		long loaded = 0;
+		
+		//A full leaf is held until the leaf after it fills up and has its address reserved,
+		//so each leaf is written once with its next pointer, and the last two leaves can
+		//still be evened out
+		BTreeNode prev = null; //Full leaf not written yet
+		long prevAddr = 0; //Reserved for prev
+		BTreeNode leaf = new BTreeNode(0, new long[order-1], new long[order]);
+		while (source.next())
+		{
+			long key = source.key();
+			checkKey(key);
+			if (loaded > 0)
 			{
-				pathAddresses.push(subTree.children[j + 1]);
-				return searchAux(new BTreeNode(subTree.children[j + 1]), key);
+				long last = leaf.keys[Math.abs(leaf.count)-1];
+				if (key == last)
+					continue; //Duplicate, keep the first
+				if (key < last)
+					throw new IllegalArgumentException("bulkLoad keys must be in ascending order");
 			}
-			else if (key == subTree.keys[j] && subTree.isLeaf)
+			if (Math.abs(leaf.count) == leafKeys)
 			{
-				return subTree.children[j]; //Return DBTable Address
+				long leafAddr = reserveFree(prevAddr);
+				if (prev != null)
+				{
+					prev.next = leafAddr;
+					writeNode(prevAddr, prev);
+					if (levelSize == levelKeys.length)
+					{
+						levelKeys = Arrays.copyOf(levelKeys, levelSize * 2);
+						levelAddrs = Arrays.copyOf(levelAddrs, levelSize * 2);
+					}
+					levelKeys[levelSize] = prev.keys[0];
+					levelAddrs[levelSize] = prevAddr;
+					levelSize++;
+				}
+				prev = leaf;
+				prevAddr = leafAddr;
+				leaf = new BTreeNode(0, new long[order-1], new long[order]);
 			}
+			leaf.keys[Math.abs(leaf.count)] = key;
+			leaf.children[Math.abs(leaf.count)] = source.address();
+			leaf.count--;
+			loaded++;
 		}
-		//Key DNE so return 0;
-		return 0;
-	}
-	
-	/**
-	 * Writes a BTreeNode's data to the B Tree file
-	 * @param addr the address to start writing at
-	 * @param n BTreeNode
-	 */
-	private void writeNode(long addr, BTreeNode n)
-	{
-		try 
+		if (loaded == 0)
+		{
+			return 0;
+		}
+		
+		//The last leaf may be too small, merge it into the leaf before it or even them out
+		if (prev != null && Math.abs(leaf.count) < Math.max(minKeys, 1))
 		{
-			f.seek(addr);
-			if (n.isFree == false)
+			int prevCount = Math.abs(prev.count);
+			int leafCount = Math.abs(leaf.count);
+			if (prevCount + leafCount <= order - 1)
 			{
-				f.writeInt(n.count);
-				for (int i = 0; i < n.keys.length; i++)
-				{
-					f.writeInt(n.keys[i]);
-				}
-				for (int i = 0; i < n.children.length; i++)
-				{
-					f.writeLong(n.children[i]);
-				}
-				for (int i = 0; i < padding; i ++)
-				{
-					f.writeByte(0);
-				}
+				System.arraycopy(leaf.keys, 0, prev.keys, prevCount, leafCount);
+				System.arraycopy(leaf.children, 0, prev.children, prevCount, leafCount);
+				prev.count -= leafCount;
+				leaf.count = 0;
 			}
 			else
 			{
-				f.writeInt(n.count); //Flag for free node
-				f.writeLong(n.nextFree);
-				for (int i = 12; i < blockSize; i++)
-				{
-					f.writeByte(0); 
-				}
+				int moved = prevCount - (prevCount + leafCount + 1)/2;
+				System.arraycopy(leaf.keys, 0, leaf.keys, moved, leafCount);
+				System.arraycopy(leaf.children, 0, leaf.children, moved, leafCount);
+				System.arraycopy(prev.keys, prevCount - moved, leaf.keys, 0, moved);
+				System.arraycopy(prev.children, prevCount - moved, leaf.children, 0, moved);
+				Arrays.fill(prev.keys, prevCount - moved, prevCount, 0);
+				Arrays.fill(prev.children, prevCount - moved, prevCount, 0);
+				prev.count += moved;
+				leaf.count -= moved;
 			}
 		}
-		catch (IOException e) 
+		long leafAddr = leaf.count == 0 ? 0 : reserveFree(prevAddr); //0 when everything fit in prev
+		if (levelSize + 2 > levelKeys.length)
 		{
-			e.printStackTrace();
+			levelKeys = Arrays.copyOf(levelKeys, levelSize + 2);
+			levelAddrs = Arrays.copyOf(levelAddrs, levelSize + 2);
+		}
+		if (prev != null)
+		{
+			prev.next = leafAddr;
+			writeNode(prevAddr, prev);
+			levelKeys[levelSize] = prev.keys[0];
+			levelAddrs[levelSize] = prevAddr;
+			levelSize++;
+		}
+		if (leafAddr != 0)
+		{
+			writeNode(leafAddr, leaf);
+			levelKeys[levelSize] = leaf.keys[0];
+			levelAddrs[levelSize] = leafAddr;
+			levelSize++;
 		}
 		
+		while (levelSize > 1)
+		{
+			levelSize = buildLevel(levelKeys, levelAddrs, levelSize, nodeChildren);
+		}
+		latchWrite(0);
+		root = levelAddrs[0];
+		return loaded;
 	}
+	
 	/**
-	 * Searches the BTree for keys within range low to high inclusive
-	 * @param low The lowest key to search for
-	 * @param high The highest key to search for
-	 * @return a LinkedList of DBAddresses associated with each key within range
+	 * Takes a block for a bulk loaded leaf like getFree, but past a reserved block at the end
+	 * of the file that is not written yet
+	 * @param pending A block taken for a leaf that is not written yet, 0 for none
+	 * @return The address of the block
 	 */
-	public LinkedList<Long> rangeSearch(int low, int high)
+	private long reserveFree(long pending)
 	{
-		LinkedList<Long> dbAddrs = new LinkedList<Long>();
-		rangeAux(dbAddrs, new BTreeNode(root), low, high);
-		return dbAddrs;
+		long addr = freeBlocks.first();
+		if (addr != 0)
+		{
+			freeBlocks.remove(addr);
+			return addr;
+		}
+		long end = blocks.length();
+		return pending < end ? end : pending + blockSize; //pending is the end when it is not a free block
 	}
+	
 	/**
-	 * Auxillary Method for Range Search
-	 * @param dbAddrs
-	 * @param node
-	 * @param low
-	 * @param high
+	 * Writes the non-leaves above one level of a bulk loaded BTree. The entries of the
+	 * new level replace the front of keys and addrs.
+	 * @param keys The smallest key under each node of the level below
+	 * @param addrs The address of each node of the level below
+	 * @param size The number of nodes in the level below
+	 * @param perNode The number of children to give each new node
+	 * @return The number of nodes in the new level
 	 */
-	private void rangeAux(LinkedList<Long> dbAddrs, BTreeNode node, int low, int high) 
+	private int buildLevel(long[] keys, long[] addrs, int size, int perNode)
 	{
-		if (!node.isLeaf)
+		int newSize = 0;
+		int start = 0;
+		while (start < size)
 		{
-			for (int i = 0; i < node.count; i++)
+			int children = Math.min(perNode, size - start);
+			int left = size - start - children;
+			if (left > 0 && left < Math.max(minKeys + 1, 2)) //Even out the last two nodes
 			{
-				if (node.keys[i] <=high && node.keys[i] >= low)
-				{
-					if (i != 0 && node.keys[i-1] < low) //Check last child, may contain values in range
-					{
-						rangeAux(dbAddrs, new BTreeNode(node.children[i]), low, high);
-					}
-					else if (i == 0)
-					{
-						rangeAux(dbAddrs, new BTreeNode(node.children[0]), low, high);
-					}
-					
-					rangeAux(dbAddrs, new BTreeNode(node.children[i+1]), low, high);
-				}
-				
+				int total = children + left;
+				children = total <= order ? total : total - total/2;
 			}
-		}
-		if (node.isLeaf)
-		{
-			for (int i = 0; i < Math.abs(node.count); i++)
+			BTreeNode node = new BTreeNode(children - 1, new long[order-1], new long[order]);
+			for (int j = 0; j < children; j++)
 			{
-				if (node.keys[i] <= high && node.keys[i] >= low)
-				{
-					dbAddrs.add(node.children[i]);
-				}
+				if (j > 0)
+					node.keys[j-1] = keys[start + j];
+				node.children[j] = addrs[start + j];
 			}
+			long nodeAddr = getFree();
+			writeNode(nodeAddr, node);
+			keys[newSize] = keys[start];
+			addrs[newSize] = nodeAddr;
+			newSize++;
+			start += children;
 		}
+		return newSize;
 	}
 	
 	/**
-	 * Removes a key from the BTree and updates the BTree
-	 * @param key - The key to be removed
-	 * @return The DBAddress associated with the removed Key.
+	 * Splits a BTreeNode. Median key is the first key in newNode. Updates both nodes.
+	 * node keeps the lower keys, newNode gets the rest. Nodes split evenly unless key is
+	 * larger than every key in node, then splitBias decides how many keys node keeps.
+	 * @param node The node to be split
+	 * @param nodeAddr The address of the node to be split
+	 * @param key The key to be included in the split.
+	 * @param DBaddr The data associated with the key to be included in split
+	 * @return The address where the medianKey can be found relative to the child.
 	 */
-	public long remove(int key) 
+	private long splitNode(BTreeNode node, long nodeAddr, long key, long DBaddr) 
 	{
-		int originalKey = key;
-		boolean tooSmall = false;
-		boolean canBorrow = false;
-		long returnAddr = search(key);
-		long nodeAddr;
-		long childAddr;
-		BTreeNode child;
-		BTreeNode node;
-		if (returnAddr != 0) //Key found
+		structureVersion++;
+		splits.increment();
+		//Splits node and returns the new address to be used in splitting
+		int count = Math.abs(node.count);
+		int total = count + 1; //Keys including key
+		int pos = upperBound(node.keys, count, key);
+		
+		//Merge key into the sorted keys. A leaf's address sits under its key,
+		//a non-leaf's new child goes to the right of key.
+		System.arraycopy(node.keys, 0, splitKeys, 0, pos);
+		splitKeys[pos] = key;
+		System.arraycopy(node.keys, pos, splitKeys, pos + 1, count - pos);
+		int childOffset = node.isLeaf ? 0 : 1;
+		System.arraycopy(node.children, 0, splitChildren, 0, pos + childOffset);
+		splitChildren[pos + childOffset] = DBaddr;
+		System.arraycopy(node.children, pos + childOffset, splitChildren, pos + childOffset + 1, count - pos);
+		
+		int left = total / 2; //Keys that stay in node
+		if (pos == count && splitBias != 0.5) //Appending past the last key
 		{
-			node = path.pop();
-			nodeAddr = pathAddresses.pop();
-			tooSmall = removeVal(node, key, nodeAddr, false);
-			while(!path.empty() && tooSmall)
-			{
-				child = node;
-				childAddr = nodeAddr;
-				node = path.pop();
-				nodeAddr = pathAddresses.pop();
-				canBorrow = checkNeighbors(node, childAddr);
-				if (canBorrow)
-				{
-					shiftValues(child, childAddr, node, nodeAddr);
-					writeNode(childAddr, child);
-					updateParent(node, originalKey);
-					tooSmall = false;
-					writeNode(nodeAddr, node);
-				}
-				else
-				{
-					key = combineChild(node, child, childAddr);
-					writeNode(childAddr, child);
-					tooSmall = removeVal(node, key, nodeAddr, false);
-					updateParent(node, originalKey);
-					writeNode(nodeAddr, node);
-				}
-				
-			}
-			if (tooSmall) //Root is empty
-			{
-				long oldRoot = nodeAddr;
-				if (!node.isLeaf)
-				{
-					root = node.children[0];
-				}
-				else
-				{
-					root = 0;
-				}
-				addFree(oldRoot, node);
-			}
-			else
-			{
-				updateParent(node, originalKey);
-				writeNode(nodeAddr, node);
-			}
-			while (!path.empty())
-			{
-				node = path.pop();
-				nodeAddr = pathAddresses.pop();
-				updateParent(node, originalKey);
-				writeNode(nodeAddr, node);
-			}
+			left = (int) (total * splitBias);
+		}
+		//Both halves keep at least one key, a non-leaf also pushes one key up
+		left = Math.max(1, Math.min(left, node.isLeaf ? total - 1 : total - 2));
+		
+		BTreeNode newNode;
+		int right = node.isLeaf ? total - left : total - left - 1;
+		int rightStart = node.isLeaf ? left : left + 1; //A non-leaf's median moves up, not right
+		int rightChildren = node.isLeaf ? right : right + 1;
+		newNode = new BTreeNode(node.isLeaf ? -right : right, new long[order-1], new long[order]);
+		System.arraycopy(splitKeys, rightStart, newNode.keys, 0, right);
+		System.arraycopy(splitChildren, rightStart, newNode.children, 0, rightChildren);
+		
+		//Rebuild node in place with the lower keys
+		int leftChildren = node.isLeaf ? left : left + 1;
+		System.arraycopy(splitKeys, 0, node.keys, 0, left);
+		Arrays.fill(node.keys, left, node.keys.length, 0);
+		System.arraycopy(splitChildren, 0, node.children, 0, leftChildren);
+		Arrays.fill(node.children, leftChildren, node.children.length, 0);
+		node.count = node.isLeaf ? -left : left;
+		
+		long returnAddr = getFree();
+		if (node.isLeaf) //newNode goes between node and the next leaf
+		{
+			newNode.next = node.next;
+			node.next = returnAddr;
 		}
-		return returnAddr; //Returns 0 if Key not Found 
-		/*
-		If  the key is in the Btree, remove the key and return the address of the row
-		return 0 if the key is not found in the B+tree
-		*/
+		splitKey = node.isLeaf ? newNode.keys[0] : splitKeys[left];
+		writeNode(nodeAddr, node);
+		writeNode(returnAddr, newNode);
+		return returnAddr;
 	}
 	
 	/**
-	 * Updates the ParentNode's keys if one is out of date
-	 * @param node
-	 * @param key
+	 * Sets where a node splits when a key larger than every key in it arrives, as happens
+	 * on every split when keys are inserted in ascending order. Other splits are always even.
+	 * @param bias The fraction of the keys that stay in the left node. 0.5 splits evenly,
+	 * the default. 1.0 leaves the left node full, packing ascending keys into full leaves.
+	 * @throws IllegalArgumentException if bias is not between 0.5 and 1
 	 */
-	private void updateParent(BTreeNode node, int key) 
+	public void setSplitBias(double bias)
 	{
-		BTreeNode child;
-		for (int i = 0; i < Math.abs(node.count); i++)
+		if (!(bias >= 0.5 && bias <= 1))
 		{
-			if (node.keys[i] == key)
-			{
-				child = new BTreeNode(node.children[i+1]);
-				while (!child.isLeaf)
-				{
-					child = new BTreeNode(child.children[0]);
-				}
-				node.keys[i] = child.keys[0];
-				break;
-			}
+			throw new IllegalArgumentException("split bias must be between 0.5 and 1");
+		}
+		writer.lock();
+		try
+		{
+			splitBias = bias;
+		}
+		finally
+		{
+			writer.unlock();
 		}
 	}
+	
 	/**
-	 * Combines child Node with a suitable neighbor.
-	 * @param node
-	 * @param child
-	 * @param childAddr
-	 * @return The new key to be removed/modified from combining children
+	 * Inserts data into a BTreeNode in sorted order. Does not update node.
+	 * @param node The BTreeNode
+	 * @param keyThe key to be inserted into node
+	 * @param addr The address to be inserted into node.
 	 */
-	private int combineChild(BTreeNode node, BTreeNode child, long childAddr) 
+	private void insertVal(BTreeNode node, long key, long addr)
 	{
-		BTreeNode temp;
-		int key = 0;
-		for (int i = 0; i < node.count + 1; i++)
+		//Insert into node in sorted Order, after every key <= key
+		int count = Math.abs(node.count);
+		int pos = upperBound(node.keys, count, key);
+		System.arraycopy(node.keys, pos, node.keys, pos + 1, count - pos);
+		if (node.isLeaf)
+			System.arraycopy(node.children, pos, node.children, pos + 1, count - pos);
+		else
+			System.arraycopy(node.children, pos + 1, node.children, pos + 2, count - pos);
+		
+		if (node.isLeaf)
 		{
-			if (node.children[i] == childAddr)
-			{
-				if (i != 0)
-				{
-					temp = new BTreeNode(node.children[i-1]);
-					if (temp.isLeaf)
-					{
-						for (int j = 0; j < Math.abs(child.count); j++)
-						{
-							insertVal(temp, child.keys[j], child.children[j]);
-						}
-						key = node.keys[i-1];
-						addFree(childAddr, child);
-						writeNode(node.children[i-1], temp);
-					}
-					else
+			node.children[pos] = addr;
+			node.count--;
+		}
+		else //The new child holds the keys from key up, it goes right of key
+		{
+			node.children[pos + 1] = addr;
+			node.count++;
+		}
+		
+		node.keys[pos] = key;
+	}
+	
+	/**
+	 * Binary searches the first count keys of a node
+	 * @return The number of keys <= key, which is the child to follow for key
+	 */
+	private static int upperBound(long keys[], int count, long key)
+	{
+		int low = 0;
+		int high = count;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (keys[mid] <= key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * Binary searches the keys of a node read in place
+	 * @return The number of keys <= key, which is the child to follow for key
+	 */
+	private int upperBound(ByteBuffer block, int count, long key)
+	{
+		int low = 0;
+		int high = count;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (keyAt(block, mid) <= key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * @return Key i of a node read in place
+	 */
+	private long keyAt(ByteBuffer block, int i)
+	{
+		return keySize == 4 ? block.getInt(4 + i*4) : block.getLong(4 + i*8);
+	}
+	
+	/**
+	 * @return The offset of the first child in a node
+	 */
+	private int childStart()
+	{
+		return 4 + (order - 1)*keySize;
+	}
+	
+	/**
+	 * Checks that key fits in the bytes this BTree stores keys in
+	 * @throws IllegalArgumentException if the BTree stores int keys and key is not an int
+	 */
+	private void checkKey(long key)
+	{
+		if (keySize == 4 && key != (int) key)
+		{
+			throw new IllegalArgumentException("Key " + key + " does not fit in an int key BTree");
+		}
+	}
+	
+	/**
+	 * @return The index of key among the first count keys, -1 if it is not there
+	 */
+	private static int indexOf(long keys[], int count, long key)
+	{
+		int i = upperBound(keys, count, key) - 1;
+		return i >= 0 && keys[i] == key ? i : -1;
+	}
+	
+	/**
+	 * Returns DBTable address from key. Safe to call from many threads at once.
+	 * @param k the key to be searched for
+	 * @return	The address associated with the key, otherwise return 0
+	 */
+	public long search(long k) 
+	{
+		long start = metrics.start();
+		long addr = searchAux(k);
+		metrics.end(Metrics.SEARCH, start, k);
+		return addr;
+	}
+	
+	private long searchAux(long k)
+	{
+		//Return DBTable "row" address associated with key otherwise return 0.
+		//Reads the leaf in place rather than decoding a BTreeNode so a lookup allocates nothing
+		long addr = latchLeaf(k);
+		if (addr == 0)
+		{
+			return 0;
+		}
+		try
+		{
+			ByteBuffer leaf = readBlock(addr);
+			int j = upperBound(leaf, -leaf.getInt(0), k) - 1;
+			if (j >= 0 && keyAt(leaf, j) == k)
+			{
+				return leaf.getLong(childStart() + j*8); //Return DBTable Address
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			latches.unlockRead(addr);
+		}
+		//Key DNE so return 0;
+		return 0;
+	}
+	
+	/**
+	 * Looks up many keys with one walk of the BTree. The keys are sorted, each node is read
+	 * once for every key under it that is searched for, so neighbouring keys share their
+	 * descent and every key in a leaf is found with one read of it. Safe to call from many
+	 * threads at once.
+	 * @param keys The keys to search for, in any order, repeats allowed
+	 * @return The DBTable address associated with each key, 0 where a key is not found
+	 */
+	public long[] searchMany(long keys[])
+	{
+		long start = metrics.start();
+		long addrs[] = new long[keys.length];
+		int sorted[] = sortByKey(keys);
+		latches.lockRead(0);
+		long addr = root;
+		if (addr != 0 && keys.length > 0)
+		{
+			latches.lockRead(addr);
+			latches.unlockRead(0);
+			searchRun(addr, keys, sorted, 0, keys.length, addrs);
+		}
+		else
+		{
+			latches.unlockRead(0);
+		}
+		metrics.end(Metrics.SEARCH_MANY, start, keys.length == 0 ? 0 : keys[0]);
+		return addrs;
+	}
+	
+	/**
+	 * Looks up the sorted keys from to to under the node at addr. The caller holds the read
+	 * latch on addr and this releases it. A non-leaf is copied and released before its
+	 * children are visited, so at most two latches are held at once like in latchLeaf. If a
+	 * split, merge or borrow happens meanwhile the copy may be stale, and the keys of the
+	 * run not yet found are searched one at a time.
+	 * @param sorted Positions in keys in key order
+	 * @param addrs Where the address found for each key is stored
+	 */
+	private void searchRun(long addr, long keys[], int sorted[], int from, int to, long addrs[])
+	{
+		long version;
+		long separators[];
+		long children[];
+		int count;
+		try
+		{
+			version = structureVersion;
+			ByteBuffer block = readBlock(addr);
+			count = block.getInt(0);
+			if (count <= 0) //Leaf, every key of the run is in it or nowhere
+			{
+				for (int i = from; i < to; i++)
+				{
+					long key = keys[sorted[i]];
+					int j = upperBound(block, -count, key) - 1;
+					if (j >= 0 && keyAt(block, j) == key)
 					{
-						insertVal(temp, node.keys[i-1], child.children[0]);
-						for (int j = 0; j < Math.abs(child.count); j++)
-						{
-							insertVal(temp, child.keys[j], child.children[j+1]);
-						}
-						key = node.keys[i-1];
-						addFree(childAddr, child);
-						writeNode(node.children[i-1], temp);
+						addrs[sorted[i]] = block.getLong(childStart() + j*8);
 					}
-					break;
-					
 				}
-				else if (i != node.count)
+				return;
+			}
+			separators = new long[count];
+			children = new long[count + 1];
+			for (int j = 0; j < count; j++)
+			{
+				separators[j] = keyAt(block, j);
+				children[j] = block.getLong(childStart() + j*8);
+			}
+			children[count] = block.getLong(childStart() + count*8);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		finally
+		{
+			latches.unlockRead(addr);
+		}
+		int i = from;
+		while (i < to)
+		{
+			int child = upperBound(separators, count, keys[sorted[i]]);
+			int end = i + 1; //Keys below the next separator go to the same child
+			while (end < to && (child == count || keys[sorted[end]] < separators[child]))
+			{
+				end++;
+			}
+			latches.lockRead(children[child]);
+			if (structureVersion != version)
+			{
+				latches.unlockRead(children[child]);
+				for (; i < to; i++)
+				{
+					addrs[sorted[i]] = searchAux(keys[sorted[i]]);
+				}
+				return;
+			}
+			searchRun(children[child], keys, sorted, i, end, addrs);
+			i = end;
+		}
+	}
+	
+	/**
+	 * Builds Stack path and pathAddresses from the root to the leaf for key, write latching
+	 * every node the insert or remove may change. The caller holds the writer lock.
+	 * @param key the key to be searched for
+	 * @param forInsert true when descending for an insert, false for a remove
+	 * @return The address associated with the key, otherwise return 0
+	 */
+	private long descend(long key, boolean forInsert)
+	{
+		path.clear();
+		pathAddresses.clear();
+		pathSlots.clear();
+		releasable.clear();
+		latchWrite(0);
+		releasable.push(0);
+		if (root == 0)
+		{
+			return 0;
+		}
+		long addr = root;
+		while (true)
+		{
+			latchWrite(addr);
+			BTreeNode node = new BTreeNode(addr);
+			path.push(node);
+			pathAddresses.push(addr);
+			if (isSafe(node, addr == root, forInsert))
+			{
+				for (int j = 0; j < releasable.size(); j++)
+				{
+					unlatchWrite(releasable.get(j));
+				}
+				releasable.clear();
+			}
+			int i = upperBound(node.keys, Math.abs(node.count), key);
+			boolean separator = i > 0 && node.keys[i-1] == key; //key is a separator here, a remove will update it
+			if (node.isLeaf)
+			{
+				pathSlots.push(i - 1);
+				return separator ? node.children[i-1] : 0;
+			}
+			pathSlots.push(i);
+			if (forInsert || !separator)
+			{
+				releasable.push(addr);
+			}
+			addr = node.children[i];
+		}
+	}
+	
+	/**
+	 * Whether an insert or remove below node can leave node unchanged
+	 * @param node The node
+	 * @param isRoot true if node is the root
+	 * @param forInsert true for an insert, false for a remove
+	 * @return true if node will not split or fall below the minimum number of keys
+	 */
+	private boolean isSafe(BTreeNode node, boolean isRoot, boolean forInsert)
+	{
+		if (forInsert)
+			return Math.abs(node.count) < node.keys.length;
+		if (isRoot)
+			return Math.abs(node.count) > 1;
+		return Math.abs(node.count) > minKeys;
+	}
+	
+	/**
+	 * Reads a block from the block store and counts the read
+	 */
+	private ByteBuffer readBlock(long addr) throws IOException
+	{
+		nodeReads.increment();
+		return blocks.read(addr);
+	}
+	
+	/**
+	 * Writes a BTreeNode's data to the B Tree file
+	 * @param addr the address to start writing at
+	 * @param n BTreeNode
+	 */
+	private void writeNode(long addr, BTreeNode n)
+	{
+		latchWrite(addr); //Held until the writer finishes the operation
+		ByteBuffer block = ByteBuffer.allocate(blockSize);
+		block.putInt(n.count);
+		if (n.isFree == false)
+		{
+			for (int i = 0; i < n.keys.length; i++)
+			{
+				if (keySize == 4)
+					block.putInt((int) n.keys[i]);
+				else
+					block.putLong(n.keys[i]);
+			}
+			for (int i = 0; i < n.children.length; i++)
+			{
+				block.putLong(n.children[i]);
+			}
+			if (n.isLeaf) //A leaf never uses its last child, it holds the next leaf
+			{
+				block.putLong(block.position() - 8, n.next);
+			}
+		}
+		else
+		{
+			block.putLong(n.nextFree); //Rest of a free block stays zeroed
+		}
+		try 
+		{
+			if (log != null)
+			{
+				log.add(logFile, addr, block.array());
+			}
+			blocks.write(addr, block.array());
+			nodeWrites.increment();
+		}
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+		}
+		
+	}
+	/**
+	 * Searches the BTree for keys within range low to high inclusive
+	 * @param low The lowest key to search for
+	 * @param high The highest key to search for
+	 * @return a LinkedList of DBAddresses associated with each key within range
+	 */
+	public LinkedList<Long> rangeSearch(long low, long high)
+	{
+		long start = metrics.start();
+		LinkedList<Long> dbAddrs = new LinkedList<Long>();
+		Cursor c = cursor(low, high);
+		while (c.next())
+		{
+			dbAddrs.add(c.address());
+		}
+		c.close();
+		metrics.end(Metrics.RANGE_SEARCH, start, low);
+		return dbAddrs;
+	}
+	
+	/**
+	 * Opens a cursor over the keys within range low to high inclusive. Leaves are
+	 * read one at a time as the cursor reaches them.
+	 * @param low The lowest key to search for
+	 * @param high The highest key to search for
+	 * @return a Cursor positioned before the first key in range
+	 */
+	public Cursor cursor(long low, long high)
+	{
+		return new Cursor(low, high);
+	}
+	
+	/**
+	 * Descends from the root to the leaf where key is or would be stored. Each node is
+	 * read latched until its child is latched.
+	 * @param key The key to search for
+	 * @return The leaf for key, null if the BTree is empty
+	 */
+	private BTreeNode findLeaf(long key)
+	{
+		long addr = latchLeaf(key);
+		if (addr == 0)
+		{
+			return null;
+		}
+		BTreeNode node = new BTreeNode(addr);
+		latches.unlockRead(addr);
+		return node;
+	}
+	
+	/**
+	 * Finds the leaf that holds or would hold key, read latching nodes hand over hand.
+	 * Non-leaves are read in place without decoding a BTreeNode.
+	 * @param key The key to search for
+	 * @return The address of the leaf with its read latch held, 0 if the BTree is empty
+	 */
+	private long latchLeaf(long key)
+	{
+		latches.lockRead(0);
+		long addr = root;
+		if (addr == 0)
+		{
+			latches.unlockRead(0);
+			return 0;
+		}
+		latches.lockRead(addr);
+		latches.unlockRead(0);
+		int childStart = childStart();
+		try
+		{
+			ByteBuffer block = readBlock(addr);
+			int count = block.getInt(0);
+			while (count > 0) //Non-leaf
+			{
+				long child = block.getLong(childStart + upperBound(block, count, key)*8);
+				latches.lockRead(child);
+				latches.unlockRead(addr);
+				addr = child;
+				block = readBlock(addr);
+				count = block.getInt(0);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		return addr;
+	}
+	
+	/**
+	 * Write latches a node for the current writer unless it already holds the latch
+	 * @param addr The address of the node, 0 for the root pointer
+	 */
+	private void latchWrite(long addr)
+	{
+		if (!held.contains(addr))
+		{
+			latches.lockWrite(addr);
+			held.push(addr);
+		}
+	}
+	
+	private void unlatchWrite(long addr)
+	{
+		if (held.remove(addr))
+		{
+			latches.unlockWrite(addr);
+		}
+	}
+	
+	/**
+	 * Releases every latch held by the current writer
+	 */
+	private void unlatchAll()
+	{
+		for (int i = 0; i < held.size(); i++)
+		{
+			latches.unlockWrite(held.get(i));
+		}
+		held.clear();
+	}
+	
+	/**
+	 * Sets the next leaf of every leaf. Upgrades files written before leaves were linked.
+	 */
+	private void linkLeaves()
+	{
+		if (root == 0)
+			return;
+		long prevAddr = 0;
+		BTreeNode prev = null;
+		LongStack todo = new LongStack(); //Depth first, leftmost child on top
+		todo.push(root);
+		while (!todo.empty())
+		{
+			long addr = todo.pop();
+			BTreeNode node = new BTreeNode(addr);
+			if (node.isLeaf)
+			{
+				if (prev != null)
+				{
+					prev.next = addr;
+					writeNode(prevAddr, prev);
+				}
+				prev = node;
+				prevAddr = addr;
+			}
+			else
+			{
+				for (int i = node.count; i >= 0; i--)
+				{
+					todo.push(node.children[i]);
+				}
+			}
+		}
+		prev.next = 0;
+		writeNode(prevAddr, prev);
+		unlatchAll(); //writeNode latched every leaf for the constructor's thread
+		try
+		{
+			blocks.flush();
+			writeHeader();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Removes a key from the BTree and updates the BTree
+	 * @param key - The key to be removed
+	 * @return The DBAddress associated with the removed Key.
+	 */
+	public long remove(long key) 
+	{
+		long start = metrics.start();
+		long addr;
+		long lsn;
+		writer.lock();
+		try
+		{
+			begin();
+			addr = removeAux(key);
+		}
+		finally
+		{
+			lsn = end();
+			unlatchAll();
+			writer.unlock();
+		}
+		commit(lsn);
+		metrics.end(Metrics.REMOVE, start, key);
+		return addr;
+	}
+	
+	/**
+	 * Removes a key from the BTree. The caller holds the writer lock.
+	 * Reads the path to the leaf, at most both siblings of each node that falls below
+	 * minKeys, and the next leaf when the removed key was the only key of its leaf.
+	 */
+	private long removeAux(long key)
+	{
+		long returnAddr = descend(key, false);
+		if (returnAddr == 0) //Key not found
+		{
+			return 0;
+		}
+		BTreeNode node = path.pop();
+		long nodeAddr = pathAddresses.pop();
+		int i = (int) pathSlots.pop(); //Index of key in the leaf
+		int count = Math.abs(node.count);
+		System.arraycopy(node.keys, i + 1, node.keys, i, count - i - 1);
+		System.arraycopy(node.children, i + 1, node.children, i, count - i - 1);
+		node.keys[count - 1] = 0;
+		node.children[count - 1] = 0;
+		node.count++;
+		
+		//The smallest key of a leaf may also separate it from its left neighbour higher up,
+		//the key after it takes its place
+		long separatorAddr = -1;
+		if (i == 0)
+		{
+			long next = 0;
+			boolean hasNext = true;
+			if (node.count != 0)
+				next = node.keys[0];
+			else if (node.next != 0)
+				next = new BTreeNode(node.next).keys[0];
+			else
+				hasNext = false; //The leaf is merged into its left neighbour along with the separator
+			for (int j = 0; j < path.size() && hasNext; j++)
+			{
+				BTreeNode ancestor = path.get(j);
+				int k = indexOf(ancestor.keys, ancestor.count, key);
+				if (k >= 0)
+				{
+					ancestor.keys[k] = next;
+					separatorAddr = pathAddresses.get(j);
+				}
+			}
+		}
+		
+		while (!path.empty() && Math.abs(node.count) < minKeys)
+		{
+			BTreeNode parent = path.pop();
+			long parentAddr = pathAddresses.pop();
+			rebalance(parent, (int) pathSlots.pop(), node, nodeAddr);
+			node = parent;
+			nodeAddr = parentAddr;
+		}
+		if (path.empty() && node.count == 0) //Root is empty
+		{
+			root = node.isLeaf ? 0 : node.children[0];
+			addFree(nodeAddr, node);
+		}
+		else
+		{
+			writeNode(nodeAddr, node);
+		}
+		while (!path.empty())
+		{
+			node = path.pop();
+			nodeAddr = pathAddresses.pop();
+			if (nodeAddr == separatorAddr) //Only the node holding the removed key changes
+			{
+				writeNode(nodeAddr, node);
+			}
+		}
+		return returnAddr;
+	}
+	
+	/**
+	 * Brings a node that fell below minKeys back up by borrowing a key from a sibling
+	 * that can spare one, or else merging it with a sibling. Each sibling is read at most
+	 * once and handed along in memory. Writes node and its sibling but not parent.
+	 * @param parent The parent of node, changed in memory
+	 * @param slot The index of node among the children of parent
+	 * @param node The node that is too small
+	 * @param nodeAddr The address of node
+	 */
+	private void rebalance(BTreeNode parent, int slot, BTreeNode node, long nodeAddr)
+	{
+		structureVersion++;
+		BTreeNode left = null;
+		long leftAddr = 0;
+		if (slot > 0)
+		{
+			leftAddr = parent.children[slot-1];
+			left = new BTreeNode(leftAddr);
+			if (Math.abs(left.count) > minKeys)
+			{
+				borrowLeft(parent, slot, node, left);
+				writeNode(leftAddr, left);
+				writeNode(nodeAddr, node);
+				return;
+			}
+		}
+		if (slot < parent.count)
+		{
+			long rightAddr = parent.children[slot+1];
+			BTreeNode right = new BTreeNode(rightAddr);
+			if (Math.abs(right.count) > minKeys)
+			{
+				borrowRight(parent, slot, node, right);
+				writeNode(rightAddr, right);
+				writeNode(nodeAddr, node);
+				return;
+			}
+			if (left == null)
+			{
+				merge(parent, slot, node, right);
+				writeNode(nodeAddr, node);
+				addFree(rightAddr, right);
+				return;
+			}
+		}
+		merge(parent, slot - 1, left, node);
+		writeNode(leftAddr, left);
+		addFree(nodeAddr, node);
+	}
+	
+	/**
+	 * Moves the last key of left to the front of node, its right sibling
+	 * @param parent The parent of both nodes
+	 * @param slot The index of node among the children of parent
+	 */
+	private void borrowLeft(BTreeNode parent, int slot, BTreeNode node, BTreeNode left)
+	{
+		borrows.increment();
+		int leftCount = Math.abs(left.count);
+		int count = Math.abs(node.count);
+		System.arraycopy(node.keys, 0, node.keys, 1, count);
+		if (node.isLeaf)
+		{
+			System.arraycopy(node.children, 0, node.children, 1, count);
+			node.keys[0] = left.keys[leftCount-1];
+			node.children[0] = left.children[leftCount-1];
+			left.children[leftCount-1] = 0;
+			left.count++;
+			node.count--;
+			parent.keys[slot-1] = node.keys[0];
+		}
+		else //The separator comes down in front of node, the last key of left goes up
+		{
+			System.arraycopy(node.children, 0, node.children, 1, count + 1);
+			node.keys[0] = parent.keys[slot-1];
+			node.children[0] = left.children[leftCount];
+			parent.keys[slot-1] = left.keys[leftCount-1];
+			left.children[leftCount] = 0;
+			left.count--;
+			node.count++;
+		}
+		left.keys[leftCount-1] = 0;
+	}
+	
+	/**
+	 * Moves the first key of right to the end of node, its left sibling
+	 * @param parent The parent of both nodes
+	 * @param slot The index of node among the children of parent
+	 */
+	private void borrowRight(BTreeNode parent, int slot, BTreeNode node, BTreeNode right)
+	{
+		borrows.increment();
+		int rightCount = Math.abs(right.count);
+		int count = Math.abs(node.count);
+		if (node.isLeaf)
+		{
+			node.keys[count] = right.keys[0];
+			node.children[count] = right.children[0];
+			System.arraycopy(right.children, 1, right.children, 0, rightCount - 1);
+			right.children[rightCount-1] = 0;
+			right.count++;
+			node.count--;
+		}
+		else //The separator comes down to the end of node, the first key of right goes up
+		{
+			node.keys[count] = parent.keys[slot];
+			node.children[count+1] = right.children[0];
+			System.arraycopy(right.children, 1, right.children, 0, rightCount);
+			right.children[rightCount] = 0;
+			right.count--;
+			node.count++;
+		}
+		parent.keys[slot] = node.isLeaf ? right.keys[1] : right.keys[0];
+		System.arraycopy(right.keys, 1, right.keys, 0, rightCount - 1);
+		right.keys[rightCount-1] = 0;
+	}
+	
+	/**
+	 * Moves every key of right into left, its left sibling, and drops right from parent.
+	 * The caller frees right.
+	 * @param parent The parent of both nodes
+	 * @param slot The index of left among the children of parent
+	 */
+	private void merge(BTreeNode parent, int slot, BTreeNode left, BTreeNode right)
+	{
+		merges.increment();
+		int leftCount = Math.abs(left.count);
+		int rightCount = Math.abs(right.count);
+		if (left.isLeaf)
+		{
+			System.arraycopy(right.keys, 0, left.keys, leftCount, rightCount);
+			System.arraycopy(right.children, 0, left.children, leftCount, rightCount);
+			left.count -= rightCount;
+			left.next = right.next;
+		}
+		else //The separator comes down between the keys of the two nodes
+		{
+			left.keys[leftCount] = parent.keys[slot];
+			System.arraycopy(right.keys, 0, left.keys, leftCount + 1, rightCount);
+			System.arraycopy(right.children, 0, left.children, leftCount + 1, rightCount + 1);
+			left.count += rightCount + 1;
+		}
+		int count = parent.count;
+		System.arraycopy(parent.keys, slot + 1, parent.keys, slot, count - slot - 1);
+		System.arraycopy(parent.children, slot + 2, parent.children, slot + 1, count - slot - 1);
+		parent.keys[count - 1] = 0;
+		parent.children[count] = 0;
+		parent.count--;
+	}
+
+	/**
+	 * Gets the lowest free address, or the end of the file if no block is free. The free
+	 * list in the file is not read, the head moves to the next free block in freeBlocks.
+	 * @return The address to write the new BTreeNode to
+	 */
+	private long getFree()
+	{
+		long addr = freeBlocks.first();
+		if (addr == 0)
+		{
+			return blocks.length();
+		}
+		freeBlocks.remove(addr);
+		return addr;
+	}
+	
+	/**
+	 * Adds a block to the free list in address order. The free block before it, if any,
+	 * is rewritten to point to it.
+	 * @param addr The address of the block
+	 * @param newFree The node that was stored in the block
+	 */
+	private void addFree(long addr, BTreeNode newFree)
+	{
+		newFree.setToFree();
+		newFree.nextFree = freeBlocks.after(addr);
+		writeNode(addr, newFree);
+		long prev = freeBlocks.before(addr);
+		if (prev != 0)
+		{
+			linkFree(prev, addr);
+		}
+		freeBlocks.add(addr);
+	}
+	
+	/**
+	 * Writes a free block that points to the next free block
+	 * @param addr The address of the free block
+	 * @param nextFree The address of the next free block, 0 for the last
+	 */
+	private void linkFree(long addr, long nextFree)
+	{
+		BTreeNode n = new BTreeNode(0, null, null);
+		n.isFree = true;
+		n.nextFree = nextFree;
+		writeNode(addr, n);
+	}
+	
+	/**
+	 * Fills freeBlocks from the free list in the file. Files written before the free list
+	 * was kept in address order are relinked in order.
+	 * @param head The first block of the free list, 0 if it is empty
+	 */
+	private void loadFreeList(long head)
+	{
+		boolean ordered = true;
+		long addr = head;
+		while (addr != 0 && !freeBlocks.contains(addr))
+		{
+			ordered &= freeBlocks.after(addr) == 0;
+			freeBlocks.add(addr);
+			addr = new BTreeNode(addr).nextFree;
+		}
+		if (ordered)
+			return;
+		for (addr = freeBlocks.first(); addr != 0; addr = freeBlocks.after(addr))
+		{
+			linkFree(addr, freeBlocks.after(addr));
+		}
+		unlatchAll();
+		try
+		{
+			blocks.flush();
+			writeHeader();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Cuts the free blocks at the end of the file off. Nothing is logged, a DBTable
+	 * checkpoints and stops logging around it.
+	 * @return The number of bytes the file shrank by
+	 * @throws IllegalStateException if the BTree is logged
+	 */
+	public long truncateFreeSpace()
+	{
+		writer.lock();
+		try
+		{
+			if (log != null)
+			{
+				throw new IllegalStateException("Stop logging before truncating a BTree");
+			}
+			long length = blocks.length();
+			long tail = freeBlocks.tail(length);
+			if (tail >= length)
+			{
+				return 0;
+			}
+			long prev = freeBlocks.before(tail);
+			freeBlocks.cut(tail);
+			if (prev != 0)
+			{
+				linkFree(prev, 0);
+			}
+			unlatchAll();
+			//The free list must end before the cut blocks in the file before they are gone
+			blocks.flush();
+			writeHeader();
+			channel.force(true);
+			blocks.truncate(tail);
+			return length - tail;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return 0;
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Updates the BTree file and closes the file.
+	 */
+	public void close() 
+	{
+		metrics.unregister();
+		writer.lock();
+		try
+		{
+			blocks.close();
+			writeHeader();
+			f.close();
+		}
+		catch (IOException e)
+		{
+			
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Writes root, free and blockSize to the start of the file in one write
+	 * @throws IOException
+	 */
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.wrap(header());
+		while (header.hasRemaining())
+		{
+			channel.write(header, header.position());
+		}
+	}
+	
+	/**
+	 * @return The header as it is stored at the start of the file
+	 */
+	private byte[] header()
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(root);
+		header.putLong(freeBlocks.first());
+		header.putInt(blockSize | (keySize == 8 ? LONG_KEYS : 0) | (FORMAT_VERSION << 24));
+		return header.array();
+	}
+	
+	/**
+	 * Logs every node write to a WriteAheadLog. Each insert, remove or load is one transaction,
+	 * or part of the transaction the owning DBTable has open.
+	 * @param l The log, null to stop logging
+	 * @throws IllegalStateException if the file is memory mapped
+	 */
+	void setLog(WriteAheadLog l) throws IOException
+	{
+		setLog(l, WriteAheadLog.TREE);
+	}
+	
+	/**
+	 * Logs every node write to a WriteAheadLog as writes to one of the table's files
+	 * @param l The log, null to stop logging
+	 * @param file The file id the writes are logged under, such as WriteAheadLog.TREE
+	 * @throws IllegalStateException if the file is memory mapped
+	 */
+	void setLog(WriteAheadLog l, byte file) throws IOException
+	{
+		if (cache == null && l != null)
+		{
+			throw new IllegalStateException("A logged BTree must use the page cache");
+		}
+		writer.lock();
+		try
+		{
+			log = l;
+			logFile = file;
+			if (cache != null)
+			{
+				cache.setLog(l);
+			}
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Writes every cached node and the header to the file and forces it to disk,
+	 * after which the log no longer needs the writes logged so far.
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException
+	{
+		writer.lock();
+		try
+		{
+			blocks.flush();
+			writeHeader();
+			channel.force(true);
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Starts a logged transaction, or joins the one the DBTable has open. The caller holds the writer lock.
+	 */
+	private void begin()
+	{
+		if (log != null)
+		{
+			log.begin();
+		}
+	}
+	
+	/**
+	 * Logs the header and ends the transaction. The caller holds the writer lock.
+	 * @return The log position to wait for, 0 if there is nothing to wait for
+	 */
+	private long end()
+	{
+		if (log == null)
+		{
+			return 0;
+		}
+		try
+		{
+			log.add(logFile, 0, header());
+			return log.end();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return 0;
+		}
+	}
+	
+	/**
+	 * Waits until the transaction is durable. Called after the writer lock is released so
+	 * other writers can join the same fsync.
+	 * @param lsn A position returned by end
+	 */
+	private void commit(long lsn)
+	{
+		WriteAheadLog l = log;
+		if (lsn == 0 || l == null)
+			return;
+		try
+		{
+			l.commit(lsn);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sets how many nodes are kept in memory. Dirty nodes are written back when evicted.
+	 * Has no effect when the file is memory mapped.
+	 * @param numPages The number of nodes to cache, 0 disables caching
+	 */
+	public void setCacheSize(int numPages)
+	{
+		if (cache == null)
+			return;
+		try
+		{
+			cache.setCapacity(numPages);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return The number of nodes read so far by every operation, whether the read was
+	 * served from the cache or not
+	 */
+	public long getNodeReads()
+	{
+		return nodeReads.sum();
+	}
+	
+	/**
+	 * @return The number of nodes on the path from the root to a leaf, 0 if the BTree is
+	 * empty. Not counted in getNodeReads.
+	 */
+	public int getHeight()
+	{
+		writer.lock();
+		try
+		{
+			int height = 0;
+			long addr = root;
+			while (addr != 0)
+			{
+				height++;
+				ByteBuffer block = blocks.read(addr);
+				if (block.getInt(0) <= 0)
+					break; //Leaf
+				addr = block.getLong(childStart());
+			}
+			return height;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return 0;
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Walks every node level by level and then the free list, and reports how full each
+	 * level is and how far apart leaves that follow each other in key order sit in the file.
+	 * Writers wait until the walk is done, readers do not. Not counted in getNodeReads.
+	 * @return The shape of the BTree, null if a node could not be read
+	 */
+	public Report analyze()
+	{
+		writer.lock();
+		try
+		{
+			Report report = new Report(order, blockSize, (blocks.length() - HEADER_SIZE + blockSize - 1) / blockSize);
+			LongStack level = new LongStack();
+			if (root != 0)
+				level.push(root);
+			long previousLeaf = 0;
+			while (!level.empty())
+			{
+				LongStack below = new LongStack();
+				report.addLevel();
+				for (int i = 0; i < level.size(); i++)
 				{
-					temp = new BTreeNode(node.children[i+1]);
-					if (temp.isLeaf)
+					long addr = level.get(i);
+					ByteBuffer block = blocks.read(addr);
+					int count = block.getInt(0);
+					report.addNode(Math.abs(count));
+					if (count > 0)
 					{
-						key = temp.keys[0];
-						for (int j = 0; j < Math.abs(temp.count); j++)
+						for (int j = 0; j <= count; j++)
 						{
-							insertVal(child, temp.keys[j], temp.children[j]);
+							below.push(block.getLong(childStart() + j*8));
 						}
-						addFree(node.children[i+1], temp);
 					}
-					else
+					else //Children are pushed in key order, so leaves come in key order
 					{
-						insertVal(child, node.keys[i], temp.children[0]);
-						for (int j = 0; j < Math.abs(temp.count); j++)
-						{
-							insertVal(child, temp.keys[j], temp.children[j+1]);
-						}
-						key = node.keys[i];
-						addFree(node.children[i+1], temp);
+						if (previousLeaf != 0)
+							report.addLeafHop((addr - previousLeaf) / blockSize);
+						previousLeaf = addr;
 					}
-					break;
 				}
+				level = below;
+			}
+			//Follow nextFree from the head, no further than there are blocks in case of a cycle
+			long addr = freeBlocks.first();
+			while (addr != 0 && report.freeBlocks < report.fileBlocks)
+			{
+				report.freeBlocks++;
+				addr = blocks.read(addr).getLong(4);
 			}
+			return report;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			writer.unlock();
 		}
-		return key;
 	}
+	
+	/**
+	 * @return The number of nodes kept in memory, 0 when the file is memory mapped
+	 */
+	public int getCacheSize()
+	{
+		return cache == null ? 0 : cache.getCapacity();
+	}
+	
+	/**
+	 * @return The number of bytes in each BTreeNode
+	 */
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+	
+	/**
+	 * @return The number of node reads served from the cache
+	 */
+	public long getCacheHits()
+	{
+		return cache == null ? 0 : cache.getHits();
+	}
+	
+	/**
+	 * @return The number of node reads that went to the file
+	 */
+	public long getCacheMisses()
+	{
+		return cache == null ? 0 : cache.getMisses();
+	}
+	
+	/**
+	 * @return The number of nodes evicted from the cache
+	 */
+	public long getCacheEvictions()
+	{
+		return cache == null ? 0 : cache.getEvictions();
+	}
+	
+	/**
+	 * @return The number of nodes written so far, including nodes added to the free list
+	 */
+	public long getNodeWrites()
+	{
+		return nodeWrites.sum();
+	}
+	
+	/**
+	 * @return The number of nodes split so far
+	 */
+	public long getSplits()
+	{
+		return splits.sum();
+	}
+	
+	/**
+	 * @return The number of times two nodes were merged into one so far
+	 */
+	public long getMerges()
+	{
+		return merges.sum();
+	}
+	
+	/**
+	 * @return The number of times a node took a key from a sibling so far
+	 */
+	public long getBorrows()
+	{
+		return borrows.sum();
+	}
+	
 	/**
-	 * Shifts values between child node and a suitable neighbor. Updates parent node
-	 * @param child
-	 * @param childAddr
-	 * @param node
-	 * @param nodeAddr
+	 * @return The number of blocks in the free list
 	 */
-	private void shiftValues(BTreeNode child, long childAddr, BTreeNode node, long nodeAddr) 
+	public int getFreeBlocks()
 	{
-		BTreeNode temp;
-		for (int i = 0; i < node.count + 1; i++)
-		{
-			if (node.children[i] == childAddr)
-			{
-				if (i != 0)
-				{
-					temp = new BTreeNode(node.children[i-1]);
-					if (Math.abs(temp.count) > minKeys)
-					{
-						if (temp.isLeaf)
-						{
-							insertVal(child, temp.keys[Math.abs(temp.count)-1], temp.children[Math.abs(temp.count)-1]);
-							removeVal(temp, temp.keys[Math.abs(temp.count)-1], temp.children[Math.abs(temp.count)-1], false);
-							writeNode(node.children[i-1], temp);
-							node.keys[i-1] = child.keys[0];
-						}
-						else
-						{
-							int newKey = 0;
-							temp = new BTreeNode(node.children[i]);
-							while (!temp.isLeaf)
-							{
-								temp = new BTreeNode(temp.children[0]);
-							}
-							newKey = temp.keys[0];
-							
-							temp = new BTreeNode(node.children[i-1]);
-							insertVal(child, newKey, temp.children[temp.count]);
-							writeNode(childAddr, child);
-							
-							//MAKE NEW KEY AGAIN
-							
-							temp = new BTreeNode(node.children[i]);
-							while (!temp.isLeaf)
-							{
-								temp = new BTreeNode(temp.children[0]);
-							}
-							newKey = temp.keys[0];
-							temp = new BTreeNode(node.children[i-1]);
-							node.keys[i-1] = newKey;
-							removeVal(temp, temp.keys[temp.count-1], temp.children[temp.count], true);
-							writeNode(node.children[i-1], temp);
-						}
-						break;
-					}
-				}
-				
-				if (i != node.count)
-				{
-					temp = new BTreeNode(node.children[i+1]);
-					if (Math.abs(temp.count) > minKeys)
-					{
-						if(temp.isLeaf)
-						{
-							insertVal(child, temp.keys[0], temp.children[0]);
-							removeVal(temp, temp.keys[0], temp.children[0], false);
-							node.keys[i] = temp.keys[0];
-							writeNode(node.children[i+1], temp);
-						}
-						else
-						{
-							insertVal(child, node.keys[i], temp.children[0]);
-							removeVal(temp, temp.keys[0], temp.children[0], true);
-							//node.keys[i] = temp.keys[0];
-							writeNode(node.children[i+1], temp);
-						}
-						break;
-					}
-				}
-			}
-		}	
-		
+		return freeBlocks.size();
 	}
+	
 	/**
-	 * Checks neighbors for potential borrowing.
-	 * @param node
-	 * @param childAddr
-	 * @return true if there is a suitable neighbor for borrowing, else return false
+	 * @return The length of the file in bytes, including nodes not yet written back
 	 */
-	private boolean checkNeighbors(BTreeNode node, long childAddr) 
+	public long getFileBytes()
 	{
-		//PRE: node is a non-Leaf.
-		BTreeNode temp;
-		for (int i = 0; i < node.count + 1; i++)
-		{
-			if (node.children[i] == childAddr)
-			{
-				if (i != 0)
-				{
-					temp = new BTreeNode(node.children[i-1]);
-					if (Math.abs(temp.count) > minKeys)
-					{
-						return true;
-					}
-				}
-				if (i != node.count)
-				{
-					temp = new BTreeNode(node.children[i+1]);
-					if (Math.abs(temp.count) > minKeys)
-					{
-						return true;
-					}
-				}
-				break;
-			}
-		}
-		return false;
+		return blocks.length();
+	}
+	
+	/**
+	 * A sequence of keys and their DBTable addresses, read one at a time.
+	 */
+	public interface KeySource
+	{
+		/**
+		 * Moves to the next key
+		 * @return true if there is a key, false if the sequence is exhausted
+		 */
+		public boolean next();
+		
+		/**
+		 * @return The current key
+		 */
+		public long key();
+		
+		/**
+		 * @return The DBTable address associated with the current key
+		 */
+		public long address();
 	}
+	
 	/**
-	 * Removes a value from the node in sorted order. If flag is set true and non-leaf, the 0th child is removed
-	 * @param node
-	 * @param key
-	 * @param nodeAddr
-	 * @param flag
-	 * @return Whether or not the node in question is now too small from the remove
+	 * Walks the leaves of the BTree in key order, holding one leaf at a time.
 	 */
-	private boolean removeVal(BTreeNode node, int key, long nodeAddr, boolean flag) 
+	public class Cursor implements KeySource, Closeable
 	{
-		boolean tooSmall = false;
-		if (nodeAddr == root)
+		private BTreeNode leaf; //Current leaf, null once the cursor is done
+		private int pos;	//Index of the current key in leaf
+		private long low;
+		private long high;
+		private long version; //structureVersion before leaf was found
+		private boolean started; //Whether a key has been returned
+		private long last; //Last key returned
+		
+		private Cursor(long l, long h)
 		{
-			if(Math.abs(node.count) == 1)
+			low = l;
+			high = h;
+			pos = -1;
+			if (low <= high)
 			{
-				tooSmall = true;
+				version = structureVersion;
+				seek();
 			}
 		}
-		else if (Math.abs(node.count) <= minKeys)
+		
+		/**
+		 * Finds the leaf holding the next key in range and moves to just before it
+		 */
+		private void seek()
 		{
-			tooSmall = true;
+			long from = started ? last : low;
+			leaf = findLeaf(from);
+			if (leaf != null)
+			{
+				//Skip keys already returned or below low
+				int skip = upperBound(leaf.keys, Math.abs(leaf.count), from);
+				if (skip > 0 && !started && leaf.keys[skip-1] == low)
+					skip--; //low itself is in range
+				pos = skip - 1;
+			}
 		}
-		for(int i = 0; i < Math.abs(node.count); i++)
+		
+		/**
+		 * Moves to the next key in range
+		 * @return true if the cursor is on a key, false if there are no more keys in range
+		 */
+		public boolean next()
 		{
-			if(node.keys[i] == key)
+			while (leaf != null)
 			{
-				if (node.isLeaf)
+				pos++;
+				if (pos < Math.abs(leaf.count))
 				{
-					for (int j = i; j < Math.abs(node.count); j++)
+					if (leaf.keys[pos] > high)
 					{
-						if (j+1 == Math.abs(node.count))
-						{
-							node.keys[j] = 0;
-							node.children[j] = 0;
-						}
-						else
-						{
-						node.keys[j] = node.keys[j+1];
-						node.children[j] = node.children[j+1];
-						}
+						close();
+					}
+					else if (leaf.keys[pos] >= low && (!started || leaf.keys[pos] > last))
+					{
+						started = true;
+						last = leaf.keys[pos];
+						return true;
 					}
-					node.count++;
+				}
+				else if (leaf.next == 0)
+				{
+					close();
 				}
 				else
 				{
-					for (int j = i; j < Math.abs(node.count); j++)
+					long nextAddr = leaf.next;
+					latches.lockRead(nextAddr);
+					leaf = new BTreeNode(nextAddr);
+					boolean moved = version != structureVersion;
+					latches.unlockRead(nextAddr);
+					pos = -1;
+					if (moved) //Keys may have moved between leaves, find the next key again
 					{
-						if (j + 1 == Math.abs(node.count))
-						{
-							node.keys[j] = 0;
-							node.children[j+1] = 0;
-						}
-						else
-						{
-							if (j == 0 && flag)
-							{
-								node.children[j] = node.children[j+1];
-							}
-							node.keys[j] = node.keys[j+1];
-							node.children[j+1] = node.children[j+2];
-						}
+						version = structureVersion;
+						seek();
 					}
-					node.count--;
 				}
 			}
+			return false;
+		}
+		
+		/**
+		 * @return The key the cursor is on
+		 */
+		public long key()
+		{
+			return leaf.keys[pos];
+		}
+		
+		/**
+		 * @return The DBTable address associated with the key the cursor is on
+		 */
+		public long address()
+		{
+			return leaf.children[pos];
+		}
+		
+		/**
+		 * Releases the current leaf. next() returns false afterwards.
+		 */
+		public void close()
+		{
+			leaf = null;
 		}
-		return tooSmall;
 	}
-
+	
 	/**
-	 * Gets the first free memory address where content can be inserted
-	 * @return The first free memory address
-	 * @throws IOException
+	 * What analyze found: the nodes and keys on each level, how full the nodes are, where
+	 * the leaves sit in the file and how many blocks are free. Level 0 is the root.
 	 */
-	private long getFree()
+	public static class Report
 	{
-		long addr = 0;
-		try
+		private int order;
+		private int blockSize;
+		private long fileBlocks; //Blocks after the header, free or not
+		private int height;
+		private long levelNodes[] = new long[0];
+		private long levelKeys[] = new long[0];
+		private long keysPerNode[]; //Nodes holding each number of keys
+		private long freeBlocks; //Blocks in the free list
+		private long leafHops; //Pairs of leaves next to each other in key order
+		private long sequentialHops; //The second leaf is the block right after the first
+		private long backwardHops; //The second leaf is before the first in the file
+		private long hopBlocks; //Blocks between the leaves of every pair
+		
+		private Report(int o, int bsize, long blocks)
+		{
+			order = o;
+			blockSize = bsize;
+			fileBlocks = blocks;
+			keysPerNode = new long[order];
+		}
+		
+		private void addLevel()
+		{
+			height++;
+			levelNodes = Arrays.copyOf(levelNodes, height);
+			levelKeys = Arrays.copyOf(levelKeys, height);
+		}
+		
+		private void addNode(int keys)
+		{
+			levelNodes[height - 1]++;
+			levelKeys[height - 1] += keys;
+			keysPerNode[Math.min(keys, order - 1)]++;
+		}
+		
+		/**
+		 * @param distance The number of blocks from one leaf to the next in key order
+		 */
+		private void addLeafHop(long distance)
+		{
+			leafHops++;
+			if (distance == 1)
+				sequentialHops++;
+			if (distance < 0)
+				backwardHops++;
+			hopBlocks += Math.abs(distance);
+		}
+		
+		public int getOrder()
+		{
+			return order;
+		}
+		
+		public int getBlockSize()
+		{
+			return blockSize;
+		}
+		
+		/**
+		 * @return The number of levels, 0 if the BTree is empty
+		 */
+		public int getHeight()
+		{
+			return height;
+		}
+		
+		/**
+		 * @return The number of nodes on a level
+		 */
+		public long getNodes(int level)
+		{
+			return levelNodes[level];
+		}
+		
+		/**
+		 * @return The number of keys in the nodes of a level
+		 */
+		public long getKeys(int level)
+		{
+			return levelKeys[level];
+		}
+		
+		/**
+		 * @return The fraction of the key slots of a level that hold a key
+		 */
+		public double getFillFactor(int level)
+		{
+			return levelNodes[level] == 0 ? 0 : (double) levelKeys[level] / (levelNodes[level] * (order - 1));
+		}
+		
+		/**
+		 * @return For each number of keys from 0 to order - 1, the number of nodes holding it
+		 */
+		public long[] getKeysPerNode()
+		{
+			return keysPerNode.clone();
+		}
+		
+		/**
+		 * @return The number of blocks in the file after the header
+		 */
+		public long getFileBlocks()
+		{
+			return fileBlocks;
+		}
+		
+		/**
+		 * @return The number of blocks in the free list
+		 */
+		public long getFreeBlocks()
+		{
+			return freeBlocks;
+		}
+		
+		/**
+		 * @return The number of blocks that are neither a node nor in the free list
+		 */
+		public long getLostBlocks()
 		{
-			BTreeNode temp;
-			if (free == 0)
+			long nodes = 0;
+			for (long n : levelNodes)
 			{
-				addr = f.length();
+				nodes += n;
 			}
-			else
+			return fileBlocks - nodes - freeBlocks;
+		}
+		
+		/**
+		 * @return The number of pairs of leaves next to each other in key order
+		 */
+		public long getLeafHops()
+		{
+			return leafHops;
+		}
+		
+		/**
+		 * @return The fraction of leaves whose next leaf is the next block in the file,
+		 * 1 if there is only one leaf
+		 */
+		public double getSequentialLeafFraction()
+		{
+			return leafHops == 0 ? 1 : (double) sequentialHops / leafHops;
+		}
+		
+		/**
+		 * @return The number of leaves whose next leaf is earlier in the file
+		 */
+		public long getBackwardLeafHops()
+		{
+			return backwardHops;
+		}
+		
+		/**
+		 * @return The mean number of blocks between a leaf and the next leaf, 1 when every
+		 * leaf follows the one before it
+		 */
+		public double getMeanLeafDistance()
+		{
+			return leafHops == 0 ? 1 : (double) hopBlocks / leafHops;
+		}
+		
+		public String toString()
+		{
+			StringBuilder out = new StringBuilder();
+			out.append("order ").append(order).append(", ").append(blockSize).append(" byte blocks, height ").append(height).append('\n');
+			for (int i = 0; i < height; i++)
 			{
-				addr = free;
-				temp = new BTreeNode(free);
-				free = temp.nextFree;
+				out.append(String.format("level %d: %d nodes, %d keys, %.1f%% full%n", i, levelNodes[i], levelKeys[i], 100 * getFillFactor(i)));
 			}
-		} catch (IOException e) {}
-		
-		return addr;
-	}
-	/**
-	 * Adds shit to the free list
-	 * @param addr
-	 * @param newFree
-	 */
-	private void addFree(long addr, BTreeNode newFree)
-	{
-		newFree.setToFree();
-		newFree.nextFree = free;
-		free = addr;
-		writeNode(free, newFree);
+			//Nodes by how full they are in tenths
+			long tenths[] = new long[10];
+			for (int k = 0; k < order; k++)
+			{
+				tenths[Math.min(k * 10 / Math.max(order - 1, 1), 9)] += keysPerNode[k];
+			}
+			out.append("nodes by fill:");
+			for (int t = 0; t < 10; t++)
+			{
+				out.append(' ').append(t * 10).append("%:").append(tenths[t]);
+			}
+			out.append('\n');
+			out.append(String.format("leaves: %.1f%% followed by the next block, %d backward, mean distance %.1f blocks%n",
+					100 * getSequentialLeafFraction(), backwardHops, getMeanLeafDistance()));
+			out.append("file: ").append(fileBlocks).append(" blocks, ").append(freeBlocks).append(" free, ").append(getLostBlocks()).append(" lost");
+			return out.toString();
+		}
 	}
+	
 	/**
-	 * Updates the BTree file and closes the file.
+	 * The MBean of the file, registered while it is open
 	 */
-	public void close() 
+	private class Monitor implements BTreeMXBean
 	{
-		try
+		public String getFile()
 		{
-			f.seek(0);
-			f.writeLong(root);
-			f.writeLong(free);
-			f.writeInt(blockSize);
-			f.close();
+			return metrics.getFile();
 		}
-		catch (IOException e)
+		
+		public long getNodeReads()
 		{
-			
+			return BTree.this.getNodeReads();
+		}
+		
+		public long getNodeWrites()
+		{
+			return BTree.this.getNodeWrites();
+		}
+		
+		public long getSplits()
+		{
+			return BTree.this.getSplits();
+		}
+		
+		public long getMerges()
+		{
+			return BTree.this.getMerges();
+		}
+		
+		public long getBorrows()
+		{
+			return BTree.this.getBorrows();
+		}
+		
+		public int getFreeBlocks()
+		{
+			return BTree.this.getFreeBlocks();
+		}
+		
+		public long getFileBytes()
+		{
+			return BTree.this.getFileBytes();
+		}
+		
+		public long getCacheHits()
+		{
+			return BTree.this.getCacheHits();
+		}
+		
+		public long getCacheMisses()
+		{
+			return BTree.this.getCacheMisses();
+		}
+		
+		public long getCacheEvictions()
+		{
+			return BTree.this.getCacheEvictions();
+		}
+		
+		public LatencySummary getInsertLatency()
+		{
+			return metrics.latency(Metrics.INSERT);
+		}
+		
+		public LatencySummary getSearchLatency()
+		{
+			return metrics.latency(Metrics.SEARCH);
+		}
+		
+		public LatencySummary getRemoveLatency()
+		{
+			return metrics.latency(Metrics.REMOVE);
+		}
+		
+		public LatencySummary getRangeSearchLatency()
+		{
+			return metrics.latency(Metrics.RANGE_SEARCH);
+		}
+		
+		public LatencySummary getSearchManyLatency()
+		{
+			return metrics.latency(Metrics.SEARCH_MANY);
+		}
+		
+		public long getSlowOperationMillis()
+		{
+			return metrics.getSlowNanos() / 1000000;
+		}
+		
+		public void setSlowOperationMillis(long millis)
+		{
+			metrics.setSlowNanos(millis * 1000000);
 		}
 	}
+	
 	private class BTreeNode 
 	{
 		private int count;	//Number of keys inserted in to the node	
-		private int keys[];
+		private long keys[];
 		private long children[];
 		private boolean isLeaf;
 		private boolean isFree;
 		private long nextFree;
+		private long next; //Address of the next leaf, 0 for the last leaf and non-leaves
 
 		//constructors and other method
-		public BTreeNode(int c, int[] k, long[] child)
+		public BTreeNode(int c, long[] k, long[] child)
 		{
 			count = c;
 			keys = k;
 			isFree = false;
 			nextFree = 0;
+			next = 0;
 			children = child;
 			if (c <= 0)
 				isLeaf = true;
@@ -891,9 +2474,9 @@ public class BTree
 			nextFree = 0;
 			try
 			{
-				f.seek(addr);
-				count = f.readInt();
-				keys = new int[order -1];
+				ByteBuffer block = readBlock(addr);
+				count = block.getInt(0);
+				keys = new long[order-1];
 				children = new long[order];
 				if (count != 0)
 				{
@@ -901,39 +2484,25 @@ public class BTree
 						isLeaf = true;
 					else
 						isLeaf = false; 
-					for (int i = 0; i < keys.length; i++)
+					for (int i = 0; i < Math.abs(count); i++)
 					{
-						if(i < Math.abs(count))
-							keys[i] = f.readInt();
-						else
-						{
-							keys[i] = 0;
-							f.skipBytes(4);
-						}
+						keys[i] = keyAt(block, i);
 					}
-					for (int j = 0; j < children.length; j++)
+					int childStart = childStart();
+					int numChildren = isLeaf ? Math.abs(count) : count + 1;
+					for (int j = 0; j < numChildren; j++)
 					{
-						if (j < Math.abs(count) || (j == Math.abs(count) && !isLeaf))
-							children[j] = f.readLong();
-						else
-						{
-							children[j] = 0;
-							f.skipBytes(8);
-						}	
+						children[j] = block.getLong(childStart + j*8);
+					}
+					if (isLeaf)
+					{
+						next = block.getLong(childStart + (children.length-1)*8);
 					}
 				}
 				else //BTreeNode is free
 				{
 					isFree = true;
-					nextFree = f.readLong();
-					for (int i = 0; i < keys.length; i++)
-					{
-						keys[i] = 0;
-					}
-					for (int j = 0; j < children.length; j++)
-					{
-						children[j] = 0;
-					}
+					nextFree = block.getLong(4);
 				}
 			}
 			catch(IOException e)
@@ -952,7 +2521,7 @@ public class BTree
 			if (!isFree)
 			{
 				sb.append(" Keys: ");
-				for (int k : keys)
+				for (long k : keys)
 				{
 					sb.append(k + " ");
 				}
@@ -962,6 +2531,8 @@ public class BTree
 					sb.append(j + " ");
 				}
 				sb.append(isLeaf);
+				if (isLeaf)
+					sb.append(" Next: " + next);
 			}
 			else
 				sb.append(" Next Free: " + nextFree);
@@ -972,6 +2543,7 @@ public class BTree
 		{
 			count = 0;
 			isFree = true;
+			next = 0;
 			for (int i = 0; i < keys.length; i++)
 			{
 				keys[i] = 0;
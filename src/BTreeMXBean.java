@@ -0,0 +1,62 @@
+/**
+ * @author Lucas Rappette
+ */
+
+/**
+ * What an open BTree publishes over JMX, as rappette.btree:type=BTree,name="file.tree".
+ * Counters start at zero when the file is opened.
+ */
+public interface BTreeMXBean
+{
+
+	/**
+	 * @return The path of the .tree file
+	 */
+	public String getFile();
+
+	public long getNodeReads();
+
+	public long getNodeWrites();
+
+	public long getSplits();
+
+	public long getMerges();
+
+	/**
+	 * @return The number of keys moved from a sibling into a node that fell below minKeys
+	 */
+	public long getBorrows();
+
+	/**
+	 * @return The number of blocks in the free list
+	 */
+	public int getFreeBlocks();
+
+	/**
+	 * @return The length of the file in bytes
+	 */
+	public long getFileBytes();
+
+	public long getCacheHits();
+
+	public long getCacheMisses();
+
+	public long getCacheEvictions();
+
+	public LatencySummary getInsertLatency();
+
+	public LatencySummary getSearchLatency();
+
+	public LatencySummary getRemoveLatency();
+
+	public LatencySummary getRangeSearchLatency();
+
+	public LatencySummary getSearchManyLatency();
+
+	/**
+	 * @return Operations that take at least this many milliseconds emit a JFR event
+	 */
+	public long getSlowOperationMillis();
+
+	public void setSlowOperationMillis(long millis);
+}
\ No newline at end of file
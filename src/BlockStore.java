@@ -0,0 +1,48 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size blocks of the .tree file, addressed by their offset in the file.
+ */
+interface BlockStore
+{
+	/**
+	 * Returns the block starting at addr. Index 0 of the buffer is the first byte of the block.
+	 * The buffer may be shared with other readers, it must not be modified and must only be
+	 * read with absolute gets.
+	 * @param addr The address of the block
+	 * @return The contents of the block
+	 */
+	public ByteBuffer read(long addr) throws IOException;
+
+	/**
+	 * Replaces the block starting at addr. The store takes ownership of data.
+	 * @param addr The address of the block
+	 * @param data The new contents of the block
+	 */
+	public void write(long addr, byte[] data) throws IOException;
+
+	/**
+	 * @return The length of the file once every block is written
+	 */
+	public long length();
+
+	/**
+	 * Cuts the file to length. Blocks at or past it are dropped without being written.
+	 * @param length The new length of the file, the end of a block
+	 */
+	public void truncate(long length) throws IOException;
+
+	/**
+	 * Makes every written block durable in the file.
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Flushes the store and releases anything it holds on the file. Does not close the file.
+	 */
+	public void close() throws IOException;
+}
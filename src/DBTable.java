@@ -1,27 +1,107 @@
 /**
  * @author Lucas Rappette
  */
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DBTable 
 {
 
+	//Row formats, how the characters of the other fields are stored
+	public static final int UTF16 = 0; //Two bytes per character, the original format
+	public static final int LATIN1 = 1; //One byte per character, characters above 255 become '?'
+	public static final int UTF8 = 2; //UTF-8 in as many bytes as the field has characters
+	public static final long DEFAULT_ROW_CACHE_BYTES = 1 << 20;
+
 	private RandomAccessFile rows; //the file that stores the rows in the table
-	private long free = 0; //head of the free list space for rows
+	private FreeSpaceMap freeRows; //Free rows, the lowest is the head of the free list in the header
 	private int numOtherFields;
 	private int otherFieldLengths[];
-	private int rowSize = 4; //Default 4 bytes for keyField
+	private int rowSize; //keyField, the other fields and the free flag
+	private KeySchema keySchema;
+	private int rowFormat;
+	private boolean freeFlag; //Rows end with a byte that is 1 in free rows, older tables mark them with emptyChar
 	private BTree tree;
 	private final char nonChar = '\0'; //padding characters
-	private final char emptyChar = 253; //Not used.. yet
+	private final char emptyChar = 253; //Marks free rows of tables without the free flag
+	private static final int FREE_FLAG = 0x80; //Set in the row format byte of the header when rows have the free flag
+	private static final long CHECKPOINT_BYTES = 8 << 20; //Log size that triggers a checkpoint
+	private static final int INDEX_BLOCK_SIZE = 4096; //Bytes in each node of an index
+	private static final int INDEX_PREFIX = 4; //Characters of a field in each index key
+	private static final int COMPACT_BUFFER_BYTES = 1 << 16; //Rows written to a compacted file at a time
+	private static final int MULTI_READ_GAP = 4096; //Rows searchMany wants this close are read together
+	private static final int MULTI_READ_BYTES = 1 << 16; //Most bytes searchMany reads at a time
+	
+	private String name;
+	private ReentrantLock writer = new ReentrantLock(); //One insert, remove or load at a time
+	private WriteAheadLog log; //null unless enableLog was called
+	private TreeMap<Long, byte[]> pendingRows = new TreeMap<Long, byte[]>(); //Logged rows not yet in the file, guarded by rows
+	private long pendingEnd; //End of the last pending row
+	private volatile BTree indexes[]; //Index on each other field, null where there is none
+	private RowCache rowCache = new RowCache(DEFAULT_ROW_CACHE_BYTES); //Rows read by DBSearch
+	//Every read of the files holds the read lock, compact holds the write lock while it swaps
+	//in the compacted files
+	private ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+	private volatile long compactions; //Bumped by each compact, cursors opened before find their place again
+	private Metrics metrics; //Latencies of insert, search, remove, rangeSearch and searchMany
 
 	public DBTable(String filename, int fL[], int bsize ) 
 	{
+		this(filename, KeySchema.INT, fL, bsize);
+	}
+	
+	/**
+	 * Creates a new DBTable whose keys have the columns of a KeySchema
+	 * @param filename The name of the table without any extension
+	 * @param key The columns of the key
+	 * @param fL The length of each other field in characters
+	 * @param bsize The number of bytes in each B Tree node
+	 */
+	public DBTable(String filename, KeySchema key, int fL[], int bsize)
+	{
+		this(filename, key, fL, bsize, UTF16);
+	}
+	
+	/**
+	 * Creates a new DBTable that stores its rows in a row format. LATIN1 and UTF8 rows take
+	 * half the space of UTF16 rows. A UTF8 field holds as many bytes as the field has
+	 * characters, so text outside ASCII is cut short to fit.
+	 * @param filename The name of the table without any extension
+	 * @param key The columns of the key
+	 * @param fL The length of each other field in characters
+	 * @param bsize The number of bytes in each B Tree node
+	 * @param format UTF16, LATIN1 or UTF8
+	 * @throws IllegalArgumentException if format is not a row format
+	 */
+	public DBTable(String filename, KeySchema key, int fL[], int bsize, int format)
+	{
+		if (format != UTF16 && format != LATIN1 && format != UTF8)
+		{
+			throw new IllegalArgumentException("Unknown row format " + format);
+		}
+		name = filename;
+		keySchema = key;
+		rowFormat = format;
+		rowSize = key.keySize();
 		numOtherFields = fL.length;
 		otherFieldLengths = new int[numOtherFields];
+		metrics = new Metrics(filename + ".table");
 		try
 		{
 			File target = new File(filename + ".table");
@@ -31,17 +111,25 @@ public class DBTable
 			}
 			
 			target.createNewFile();
+			new File(filename + ".wal").delete(); //Belongs to the old table
+			new File(filename + ".compact").delete();
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				new File(WriteAheadLog.fileName(filename, WriteAheadLog.index(i))).delete();
+			}
+			indexes = new BTree[numOtherFields];
 			rows = new RandomAccessFile(target, "rw");
-			tree = new BTree(filename, bsize);
-			rows.seek(0);
-			rows.writeInt(numOtherFields);
+			tree = new BTree(filename, bsize, key.keySize(), false);
 			for (int i = 0; i < fL.length; i++)
 			{
 				otherFieldLengths[i] = fL[i];
-				rowSize += (fL[i] * 2);
-				rows.writeInt(otherFieldLengths[i]);
+				rowSize += fL[i] * bytesPerChar();
 			}
-			rows.writeLong(free);
+			freeFlag = true;
+			rowSize = paddedSize(rowSize, freeFlag);
+			freeRows = new FreeSpaceMap(headerLength(), rowSize);
+			writeHeader();
+			metrics.register("DBTable", new Monitor());
 		}
 		catch(IOException e)
 		{
@@ -51,24 +139,53 @@ public class DBTable
 	
 	public DBTable(String filename) 
 	{
+		name = filename;
 		File target = new File(filename + ".table");
+		metrics = new Metrics(filename + ".table");
 		try
 		{
 			if (!target.exists())
 			{
 				throw new IOException();
 			}
+			finishCompaction(filename);
+			WriteAheadLog.recover(filename);
 			rows = new RandomAccessFile(target, "rw");
 			tree = new BTree(filename);
 			rows.seek(0);
-			numOtherFields = rows.readInt();
+			int fieldsAndColumns = rows.readInt();
+			numOtherFields = fieldsAndColumns & 0xFFFF;
+			rowFormat = (fieldsAndColumns >>> 16) & 0x7F;
+			freeFlag = ((fieldsAndColumns >>> 16) & FREE_FLAG) != 0;
 			otherFieldLengths = new int[numOtherFields];
 			for (int i = 0; i < numOtherFields; i++)
 			{
 				otherFieldLengths[i] = rows.readInt();
-				rowSize += (otherFieldLengths[i] * 2);
+				rowSize += otherFieldLengths[i] * bytesPerChar();
+			}
+			keySchema = KeySchema.INT; //Tables without key columns in the header have int keys
+			int keyColumns = fieldsAndColumns >>> 24;
+			if (keyColumns > 0)
+			{
+				int widths[] = new int[keyColumns];
+				for (int i = 0; i < keyColumns; i++)
+				{
+					widths[i] = rows.readInt();
+				}
+				keySchema = new KeySchema(widths);
+			}
+			rowSize = paddedSize(rowSize + keySchema.keySize(), freeFlag);
+			freeRows = new FreeSpaceMap(headerLength(), rowSize);
+			loadFreeList(rows.readLong());
+			indexes = new BTree[numOtherFields];
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				if (new File(WriteAheadLog.fileName(filename, WriteAheadLog.index(i))).exists())
+				{
+					indexes[i] = new BTree(indexName(i));
+				}
 			}
-			free = rows.readLong();
+			metrics.register("DBTable", new Monitor());
 		}
 		catch(IOException e)
 		{
@@ -80,225 +197,2035 @@ public class DBTable
 	 * Inserts a key and data in to the DBTable and BTree if the key is not a duplicate
 	 * @return true - if key is not a duplicate
 	 * @return false - if key is a duplicate.
+	 * @throws IllegalArgumentException if key is not a key of the table's KeySchema
+	 * @throws IllegalStateException if the table has an index and the row could land past
+	 * the 4 GB an index can address, nothing is inserted then
 	 */
-	public boolean insert(int key, char fields[][]) 
+	public boolean insert(long key, char fields[][]) 
 	{
 		//PRE: the length of each row in fields matches the expected length
+		checkKey(key);
+		long start = metrics.start();
+		boolean inserted = false; //Stays false when key is a duplicate
+		long lsn;
 		long addr;
+		writer.lock();
 		try 
 		{
+			begin();
+			checkIndexable(freeRows.end(rowsLength())); //Free rows are below the end
 			addr = getFree();
 			if(tree.insert(key, addr) == true) //Returns true when key is not a duplicate
 			{	
 				Row r = new Row(key, fields);
 				writeRow(addr, r); //Write node to DBTable and return true
-				return true;
+				addToIndexes(addr, r);
+				inserted = true;
+			}
+			else if (addr < rowsLength()) //Nothing was written, the row is still in the free list
+			{
+				freeRows.add(addr);
 			}
 		}
 		catch(IOException e)
 		{
 				
 		}
-		return false; //Key was a duplicate so row was not added.
+		finally
+		{
+			lsn = end();
+			writer.unlock();
+		}
+		commit(lsn);
+		metrics.end(Metrics.INSERT, start, key);
+		return inserted;
 
 	}
+	/**
+	 * Inserts a batch of rows. The rows are written first and their keys are added to the
+	 * BTree with one insertBatch, rows whose key turns out to be a duplicate are freed again.
+	 * @param keys The key of each row
+	 * @param fields The other fields of each row
+	 * @return For each row, true if it was inserted, false if its key is a duplicate
+	 * @throws IllegalArgumentException if a key is not a key of the table's KeySchema
+	 * @throws IllegalStateException if the table has an index and the rows could land past
+	 * the 4 GB an index can address, nothing is inserted then
+	 */
+	public boolean[] insertAll(long keys[], char fields[][][])
+	{
+		//PRE: the length of each row in fields matches the expected length
+		for (long key : keys)
+		{
+			checkKey(key);
+		}
+		long addrs[] = new long[keys.length];
+		boolean inserted[] = new boolean[keys.length];
+		long lsn;
+		writer.lock();
+		try
+		{
+			begin();
+			checkIndexable(freeRows.end(rowsLength()) + (long) Math.max(keys.length - 1, 0) * rowSize);
+			Row batch[] = new Row[keys.length];
+			for (int i = 0; i < keys.length; i++)
+			{
+				addrs[i] = getFree();
+				batch[i] = new Row(keys[i], fields[i]);
+				writeRow(addrs[i], batch[i]);
+			}
+			inserted = tree.insertBatch(keys, addrs);
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (!inserted[i])
+				{
+					addFree(addrs[i]);
+				}
+				else
+				{
+					addToIndexes(addrs[i], batch[i]);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			lsn = end();
+			writer.unlock();
+		}
+		commit(lsn);
+		return inserted;
+	}
+	
+	/**
+	 * Loads an empty DBTable from rows in ascending key order. Rows are appended to the
+	 * end of the table file and the BTree is built bottom up.
+	 * @param source The rows to load, in ascending key order
+	 * @param fillFactor The fraction of each BTree node to fill, between 0 and 1
+	 * @return The number of rows loaded. Rows with a repeated key are skipped like in insert
+	 * @throws IllegalStateException if the DBTable is not empty, or it has an index and a
+	 * row would land past the 4 GB an index can address
+	 * @throws IllegalArgumentException if the keys are not in ascending order or a key is
+	 * not a key of the table's KeySchema
+	 */
+	public long bulkLoad(RowSource source, double fillFactor)
+	{
+		writer.lock();
+		try
+		{
+			if (log == null)
+			{
+				return tree.bulkLoad(new RowLoader(source), fillFactor);
+			}
+			//The load is not logged. Both files are forced once it is done, until then the
+			//headers on disk still describe an empty table so a crash part way leaves it empty.
+			checkpoint();
+			WriteAheadLog l = log;
+			log = null;
+			setTreeLogs(null);
+			try
+			{
+				return tree.bulkLoad(new RowLoader(source), fillFactor);
+			}
+			finally
+			{
+				log = l;
+				checkpoint();
+				setTreeLogs(l);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return 0;
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if key is not a key of the table's KeySchema
+	 */
+	private void checkKey(long key)
+	{
+		if (!keySchema.contains(key))
+		{
+			throw new IllegalArgumentException("Key " + key + " does not fit the table's key columns");
+		}
+	}
+	
 	/**
 	 * Searches BTree for the DBTable address and returns a list of the DBTable Row
 	 * @param key the key to search for in the B Tree/DBTable
 	 * @return a list of elements from the Row associated with key
 	 */
-	public LinkedList<String> search(int key)
+	public LinkedList<String> search(long key)
 	{
+		long start = metrics.start();
 		LinkedList<String> list = new LinkedList<String>();
-		Long addr = tree.search(key);
-		if (addr != 0) //Key is found
+		swap.readLock().lock();
+		try
 		{
-			for (int i = 0; i < numOtherFields; i++)
+			String fields[] = lookup(key, 0);
+			if (fields != null) //Key is found
 			{
-				list = DBSearch(addr);
+				list = new LinkedList<String>(Arrays.asList(fields));
 			}
 		}
+		finally
+		{
+			swap.readLock().unlock();
+		}
+		metrics.end(Metrics.SEARCH, start, key);
 		return list;
 	}
-	/** 
-	 * Searches only the DBTable and returns a list of the data associated with the Row
-	 * @param addr The address of the row to load
-	 * @return a list of elements from the row associated with the address
+	
+	/**
+	 * Finds the row of a key. The row is read after its address is found in the B Tree and
+	 * a writer may free it or reuse it for another key in between, so the B Tree is searched
+	 * again while the row at the address found is not the row of key. The caller holds the
+	 * swap read lock.
+	 * @param key The key to look up
+	 * @param stale An address already found not to hold the row of key, 0 for none
+	 * @return The fields of the row, null if key is not found
 	 */
-	public LinkedList<String> DBSearch(long addr)
+	private String[] lookup(long key, long stale)
 	{
-		LinkedList<String> list = new LinkedList<String>();
-		Row r = new Row(addr);
-		for (int i = 0; i < numOtherFields; i++)
+		long addr = tree.search(key);
+		while (addr != 0 && addr != stale) //The same address again is a row not written yet
 		{
-			StringBuilder sb = new StringBuilder();
-			for (char c: r.otherFields[i])
+			String fields[] = readFields(addr, key);
+			if (fields != null)
 			{
-				sb.append(c);
+				return fields;
 			}
-			String data = sb.toString();
-			data = data.replace(nonChar, ' '); 
-			list.add(data);
+			stale = addr;
+			addr = tree.search(key);
 		}
-		return list;
+		return null;
 	}
 	
 	/**
-	 * Writes a Row class' data to the DBTable file
-	 * @param addr the addr to start writing at
-	 * @param r Row class to write
+	 * Reads the fields of the row at addr, from the row cache if it is cached
+	 * @param addr The address of the row
+	 * @param key The key the row was found under
+	 * @return The fields, null if the row is free or is the row of another key
 	 */
-	private void writeRow(long addr, Row r)
+	private String[] readFields(long addr, long key)
 	{
-		try 
+		String fields[] = rowCache.get(addr, key);
+		if (fields == null)
+		{
+			Row r;
+			long stamp;
+			swap.readLock().lock();
+			try
+			{
+				stamp = rowCache.stamp(); //Before the read, so a write after it keeps the row out of the cache
+				r = new Row(addr);
+			}
+			finally
+			{
+				swap.readLock().unlock();
+			}
+			if (r.isFree || r.keyField != key) //Removed or reused since its address was found
+			{
+				return null;
+			}
+			fields = toStrings(r);
+			rowCache.put(addr, key, fields, stamp);
+		}
+		return fields;
+	}
+	/**
+	 * Looks up many keys at once. The B Tree is walked once for all of them with
+	 * BTree.searchMany, then the rows not in the row cache are read in ascending address
+	 * order, rows close together in the file with a single read. A key whose row was
+	 * removed or reused for another key in between is looked up again like search does.
+	 * @param keys The keys to search for, in any order
+	 * @return For each key, the elements of its row as search returns them, an empty list
+	 * where the key is not found
+	 */
+	public LinkedList<LinkedList<String>> searchMany(long keys[])
+	{
+		long start = metrics.start();
+		LinkedList<LinkedList<String>> output = new LinkedList<LinkedList<String>>();
+		swap.readLock().lock();
+		try
+		{
+			long addrs[] = tree.searchMany(keys);
+			String found[][] = readRows(keys, addrs);
+			for (int i = 0; i < keys.length; i++)
+			{
+				String fields[] = found[i];
+				if (fields == null && addrs[i] != 0) //Removed or reused since its address was found
+					fields = lookup(keys[i], addrs[i]);
+				if (fields == null)
+					output.add(new LinkedList<String>());
+				else
+					output.add(new LinkedList<String>(Arrays.asList(fields)));
+			}
+		}
+		finally
+		{
+			swap.readLock().unlock();
+		}
+		metrics.end(Metrics.SEARCH_MANY, start, keys.length == 0 ? 0 : keys[0]);
+		return output;
+	}
+	
+	/**
+	 * Reads the rows at many addresses, from the row cache where they are cached and from
+	 * the file in ascending address order otherwise. Rows less than MULTI_READ_GAP bytes
+	 * apart are read with one positional read of at most MULTI_READ_BYTES, the rows between
+	 * them included. The caller holds the swap read lock.
+	 * @param keys The key each address was found under
+	 * @param addrs Row addresses, 0 for none
+	 * @return For each address, the fields of the row there if it is the live row of its
+	 * key, null where it is free or the row of another key
+	 */
+	private String[][] readRows(long keys[], long addrs[])
+	{
+		String found[][] = new String[addrs.length][];
+		long sorted[] = new long[addrs.length];
+		int n = 0;
+		for (int i = 0; i < addrs.length; i++)
+		{
+			if (addrs[i] == 0)
+				continue;
+			found[i] = rowCache.get(addrs[i], keys[i]);
+			if (found[i] == null)
+				sorted[n++] = addrs[i];
+		}
+		Arrays.sort(sorted, 0, n);
+		LongMap<Row> read = new LongMap<Row>();
+		int imageSize = imageSize(); //As readRow reads a row
+		long stamp = rowCache.stamp(); //Before the reads, like DBSearch
+		int i = 0;
+		try
 		{
-			if (r.isFree) //Writing a free row, not implemented yet
+			while (i < n)
 			{
-				rows.seek(addr);
-				rows.writeLong(r.nextFree);
-				rows.writeChar(emptyChar);
-				for (int i = 10; i < rowSize; i++)
+				int end = i + 1;
+				while (end < n && sorted[end] - sorted[end - 1] < MULTI_READ_GAP
+						&& sorted[end] + imageSize - sorted[i] <= MULTI_READ_BYTES)
+				{
+					end++;
+				}
+				//Pending rows are looked up before the file is read, a checkpoint writes
+				//them to the file before it clears them
+				byte pending[][] = new byte[end - i][];
+				synchronized (rows)
 				{
-					
-					if (i + 1 == rowSize) //Needed..? for odd numbered row size
+					for (int j = i; j < end; j++)
 					{
-						rows.writeByte(127);
+						pending[j - i] = pendingRows.get(sorted[j]);
 					}
-					
-					rows.writeChar(nonChar);
-					i++;
-					//Char writes 2 bytes
 				}
-				
-			}
-			else //Writing a full row
-			{
-				rows.seek(addr);
-				rows.writeInt(r.keyField);
-				for (int i = 0; i < numOtherFields; i++)
+				ByteBuffer span = ByteBuffer.allocate((int) (sorted[end - 1] + imageSize - sorted[i]));
+				while (span.hasRemaining())
+				{
+					if (rows.getChannel().read(span, sorted[i] + span.position()) < 0)
+						break; //Rest stays zeroed
+				}
+				for (int j = i; j < end; j++)
 				{
-					for(int j = 0; j < r.otherFields[i].length; j++)
+					if (j > i && sorted[j] == sorted[j - 1])
+						continue; //Repeated address
+					byte image[] = pending[j - i];
+					if (image == null)
 					{
-						rows.writeChar(r.otherFields[i][j]);
+						int offset = (int) (sorted[j] - sorted[i]);
+						image = Arrays.copyOfRange(span.array(), offset, offset + imageSize);
 					}
+					read.put(sorted[j], new Row(image));
 				}
+				i = end;
 			}
 		}
-		catch (IOException e) 
+		catch (IOException e)
 		{
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		
+		LongMap<String[]> decoded = new LongMap<String[]>(); //Each row read is decoded once
+		for (int j = 0; j < addrs.length; j++)
+		{
+			Row r = found[j] == null && addrs[j] != 0 ? read.get(addrs[j]) : null;
+			if (r == null || r.isFree || r.keyField != keys[j]) //Removed or reused since its address was found
+				continue;
+			found[j] = decoded.get(addrs[j]);
+			if (found[j] == null)
+			{
+				found[j] = toStrings(r);
+				decoded.put(addrs[j], found[j]);
+				rowCache.put(addrs[j], r.keyField, found[j], stamp);
+			}
+		}
+		return found;
+	}
+	
+	/** 
+	 * Searches only the DBTable and returns a list of the data associated with the Row.
+	 * Whatever row is at the address is returned, search checks the row is still the
+	 * row of the key it looked up.
+	 * @param addr The address of the row to load
+	 * @return a list of elements from the row associated with the address
+	 */
+	public LinkedList<String> DBSearch(long addr)
+	{
+		Row r;
+		long stamp;
+		swap.readLock().lock();
+		try
+		{
+			stamp = rowCache.stamp(); //Before the read, so a write after it keeps the row out of the cache
+			r = new Row(addr);
+		}
+		finally
+		{
+			swap.readLock().unlock();
+		}
+		if (r.isFree)
+		{
+			return new LinkedList<String>();
+		}
+		String fields[] = toStrings(r);
+		rowCache.put(addr, r.keyField, fields, stamp);
+		return new LinkedList<String>(Arrays.asList(fields));
+	}
+	
+	/**
+	 * @return a list of elements from a Row, padding shown as spaces
+	 */
+	private LinkedList<String> toList(Row r)
+	{
+		return new LinkedList<String>(Arrays.asList(toStrings(r)));
 	}
+	
 	/**
-	 * Gets the first free memory address where content can be inserted
-	 * @return The first free memory address
-	 * @throws IOException
+	 * @return the elements of a Row, padding shown as spaces
 	 */
-	private long getFree() throws IOException
+	private String[] toStrings(Row r)
+	{
+		String fields[] = new String[numOtherFields];
+		for (int i = 0; i < numOtherFields; i++)
+		{
+			fields[i] = new String(r.otherFields[i]).replace(nonChar, ' ');
+		}
+		return fields;
+	}
+	
+	/**
+	 * Writes a Row class' data to the DBTable file
+	 * @param addr the addr to start writing at
+	 * @param r Row class to write
+	 */
+	private void writeRow(long addr, Row r)
 	{
-			long addr = 0;
-			Row temp;
-			if (free == 0)
+		byte image[] = r.toBytes();
+		if (log != null) //The row reaches the file at the next checkpoint
+		{
+			log.add(WriteAheadLog.TABLE, addr, image);
+			synchronized (rows)
 			{
-				addr = rows.length();
+				pendingRows.put(addr, image);
+				pendingEnd = Math.max(pendingEnd, addr + image.length);
+				rowCache.invalidate(addr);
 			}
-			else
+			return;
+		}
+		try 
+		{
+			ByteBuffer buf = ByteBuffer.wrap(image);
+			while (buf.hasRemaining())
 			{
-				addr = free;
-				temp = new Row(free);
-				free = temp.nextFree; //Next Address in Free List
+				rows.getChannel().write(buf, addr + buf.position());
 			}
-			return addr;
+			rowCache.invalidate(addr); //After the write, so a reader that cached the old row drops it
+		}
+		catch (IOException e) 
+		{
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		
 	}
-	/** Adds the memory address to the free list and updates the free list.
-	 * 
-	 * @param newFree The address of the empty node to be added to the free list
-	 * @param temp The node of to be added to the free list
-	 * @throws IOException
+	
+	/**
+	 * Reads the bytes of a row, from the rows waiting for a checkpoint if it is one of them.
+	 * The file is read with positional reads outside any lock, so reads of different rows
+	 * overlap and do not move the file pointer.
+	 * @param addr the address of the row
+	 * @return the row as it is stored in the file
 	 */
-	private void addFree(long newFree)
+	private byte[] readRow(long addr) throws IOException
 	{
-		try
+		byte image[];
+		synchronized (rows)
 		{
-			Row temp = new Row(newFree);
-			temp.setToFree();
-			temp.nextFree = free; //new Node next Free is the old first free node
-			writeRow(newFree, temp);
-			free = newFree;
+			image = pendingRows.get(addr); //A checkpoint writes the file before it clears these
 		}
-		catch(Exception e)
+		if (image != null)
 		{
-			
+			return image;
 		}
-		
+		image = new byte[imageSize()];
+		ByteBuffer buf = ByteBuffer.wrap(image);
+		while (buf.hasRemaining())
+		{
+			if (rows.getChannel().read(buf, addr + buf.position()) < 0)
+				break; //Rest stays zeroed
+		}
+		return image;
 	}
+	
 	/**
-	 * Attempts to remove key from the BTree, if the data in BTree is removed then the data in DBTable is removed
-	 * @param key
-	 * @return Whether or not the specificed key was successfully removed
+	 * @return The length of the table file including rows waiting for a checkpoint
 	 */
-	public boolean remove(int key) 
+	private long rowsLength() throws IOException
 	{
-		Long addr = tree.remove(key);
-		if (addr != 0) //Key is found
+		synchronized (rows)
 		{
-			addFree(addr);
-			return true;
+			return Math.max(rows.length(), pendingEnd);
 		}
-		return false; //Key not found
 	}
 	/**
-	 * Find Row data who's keys are within the range of low to high inclusive.
-	 * @param low - The Lowest key val to search for.
-	 * @param high - The highest key val to search for.
-	 * @return A list of Row Data for each row who's key is within the range of low to high.
+	 * Gets the lowest free address, or the end of the file if no row is free. The free
+	 * list in the file is not read, the head moves to the next free row in freeRows.
+	 * @return The address to write the new Row to
+	 * @throws IOException
 	 */
-	public LinkedList<LinkedList<String>> rangeSearch(int low, int high) 
+	private long getFree() throws IOException
 	{
-		LinkedList<Long> addrs = tree.rangeSearch(low, high);
-		LinkedList<LinkedList<String>> output = new LinkedList<LinkedList<String>>();
-		for (long l: addrs)
+		long addr = freeRows.first();
+		if (addr == 0)
 		{
-			output.add(DBSearch(l));
+			return freeRows.end(rowsLength());
 		}
-		return output; 
+		freeRows.remove(addr);
+		return addr;
+	}
+	/** Adds a row to the free list in address order. The free row before it, if any,
+	 * is rewritten to point to it.
+	 * 
+	 * @param newFree The address of the row to be added to the free list
+	 */
+	private void addFree(long newFree)
+	{
+		linkFree(newFree, freeRows.after(newFree));
+		long prev = freeRows.before(newFree);
+		if (prev != 0)
+		{
+			linkFree(prev, newFree);
+		}
+		freeRows.add(newFree);
 	}
 	
 	/**
-	 * Updates the DBTable and closes the B Tree.
+	 * Writes a free row that points to the next free row
+	 * @param addr The address of the free row
+	 * @param nextFree The address of the next free row, 0 for the last
 	 */
-	public void close() 
+	private void linkFree(long addr, long nextFree)
 	{
-		try 
+		Row temp = new Row(0, null);
+		temp.setToFree();
+		temp.nextFree = nextFree;
+		writeRow(addr, temp);
+	}
+	
+	/**
+	 * Fills freeRows from the free list in the file. Tables written before the free list
+	 * was kept in address order are relinked in order.
+	 * @param head The first row of the free list, 0 if it is empty
+	 */
+	private void loadFreeList(long head) throws IOException
+	{
+		boolean ordered = true;
+		long addr = head;
+		while (addr != 0 && !freeRows.contains(addr))
 		{
-			rows.seek(0);
-			rows.writeInt(numOtherFields);
-			for (int i = 0; i < numOtherFields; i ++)
+			ordered &= freeRows.after(addr) == 0;
+			freeRows.add(addr);
+			addr = new Row(addr).nextFree;
+		}
+		if (ordered)
+			return;
+		for (addr = freeRows.first(); addr != 0; addr = freeRows.after(addr))
+		{
+			linkFree(addr, freeRows.after(addr));
+		}
+		writeHeader();
+	}
+	
+	/**
+	 * Cuts the free rows at the end of the table file and the free blocks at the end of
+	 * the B Tree and index files off. A logged table is checkpointed before and after.
+	 * @return The number of bytes the files shrank by
+	 */
+	public long truncateFreeSpace()
+	{
+		writer.lock();
+		try
+		{
+			if (log == null)
 			{
-				rows.writeInt(otherFieldLengths[i]);
+				return truncateAux();
 			}
-			rows.writeLong(free);
-			rows.close();
-			tree.close();
-		} 
-		catch (IOException e) 
+			checkpoint();
+			WriteAheadLog l = log;
+			log = null;
+			setTreeLogs(null);
+			try
+			{
+				return truncateAux();
+			}
+			finally
+			{
+				log = l;
+				checkpoint();
+				setTreeLogs(l);
+			}
+		}
+		catch (IOException e)
 		{
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+			return 0;
+		}
+		finally
+		{
+			writer.unlock();
 		}
 	}
 	
-	private class Row 
+	/**
+	 * Cuts the free space off every file. The caller holds the writer lock and nothing is logged.
+	 */
+	private long truncateAux() throws IOException
 	{
-		private int keyField;
+		long cut = tree.truncateFreeSpace();
+		for (BTree index : indexes)
+		{
+			if (index != null)
+				cut += index.truncateFreeSpace();
+		}
+		long length = rowsLength();
+		long tail = freeRows.tail(length);
+		if (tail >= length)
+		{
+			return cut;
+		}
+		long prev = freeRows.before(tail);
+		freeRows.cut(tail);
+		if (prev != 0)
+		{
+			linkFree(prev, 0);
+		}
+		synchronized (rows)
+		{
+			//The free list must end before the cut rows in the file before they are gone
+			writeHeader();
+			rows.getChannel().force(true);
+			rows.setLength(tail);
+		}
+		return cut + length - tail;
+	}
+	
+	/**
+	 * Rewrites the table into new files, the rows in key order with no free rows between
+	 * them and the B Tree bulk loaded so its leaves follow each other in the file, then
+	 * rebuilds every index. Searches and scans go on while the files are written and only
+	 * wait while the new files are swapped in, inserts and removes wait until it is done.
+	 * A crash part way leaves the old files, or the new ones once they are complete.
+	 * Addresses returned before the compaction no longer name the same rows after it.
+	 * @param fillFactor The fraction of each B Tree node to fill, between 0 and 1
+	 * @return The sizes of the files before and after and how long it took, null if
+	 * the new files could not be written
+	 */
+	public Compaction compact(double fillFactor)
+	{
+		long start = System.nanoTime();
+		writer.lock();
+		try
+		{
+			if (log != null)
+				checkpoint();
+			else
+				forceFiles();
+			long before = fileBytes();
+			
+			//Rows and B Tree first, then the indexes from the index keys at the new addresses
+			String temp = name + ".compact";
+			File tempTable = new File(temp + ".table");
+			tempTable.delete();
+			RandomAccessFile out = new RandomAccessFile(tempTable, "rw");
+			BTree newTree = new BTree(temp, tree.getBlockSize(), keySchema.keySize(), false);
+			CompactLoader loader = new CompactLoader(out.getChannel());
+			newTree.bulkLoad(loader, fillFactor);
+			loader.finish();
+			out.close();
+			newTree.checkpoint();
+			newTree.close();
+			BTree current[] = indexes;
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				if (current[i] != null)
+				{
+					Arrays.sort(loader.indexKeys[i], 0, loader.loaded);
+					BTree index = new BTree(indexName(i) + ".compact", INDEX_BLOCK_SIZE, 8, false);
+					index.bulkLoad(new IndexLoader(loader.indexKeys[i], loader.loaded), 1.0);
+					index.checkpoint();
+					index.close();
+				}
+			}
+			//Once the marker is on disk the new files replace the old ones, at the latest
+			//when the table is next opened
+			RandomAccessFile marker = new RandomAccessFile(name + ".compact", "rw");
+			marker.setLength(0);
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				if (current[i] != null)
+					marker.writeInt(i);
+			}
+			marker.getChannel().force(true);
+			marker.close();
+			
+			swap.writeLock().lock();
+			try
+			{
+				int pages = tree.getCacheSize();
+				rows.close();
+				tree.close();
+				for (BTree index : current)
+				{
+					if (index != null)
+						index.close();
+				}
+				finishCompaction(name);
+				rows = new RandomAccessFile(name + ".table", "rw");
+				tree = new BTree(name);
+				tree.setCacheSize(pages);
+				BTree reopened[] = new BTree[numOtherFields];
+				for (int i = 0; i < numOtherFields; i++)
+				{
+					if (current[i] != null)
+						reopened[i] = new BTree(indexName(i));
+				}
+				indexes = reopened;
+				freeFlag = true;
+				rowSize = loader.size;
+				freeRows = new FreeSpaceMap(headerLength(), rowSize);
+				rowCache.clear();
+				compactions++;
+				if (log != null)
+					setTreeLogs(log);
+			}
+			finally
+			{
+				swap.writeLock().unlock();
+			}
+			return new Compaction(before, fileBytes(), System.nanoTime() - start);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Moves the files of a compaction that finished writing them into place. Does nothing
+	 * unless the marker of a finished compaction is there.
+	 * @param filename The name of the table without any extension
+	 * @throws IOException if a file cannot be renamed
+	 */
+	private static void finishCompaction(String filename) throws IOException
+	{
+		File marker = new File(filename + ".compact");
+		if (!marker.exists())
+			return;
+		RandomAccessFile in = new RandomAccessFile(marker, "r");
+		int fields[] = new int[(int) (in.length() / 4)]; //Indexed fields
+		for (int i = 0; i < fields.length; i++)
+		{
+			fields[i] = in.readInt();
+		}
+		in.close();
+		replace(filename + ".compact.table", filename + ".table");
+		replace(filename + ".compact.tree", filename + ".tree");
+		for (int field : fields)
+		{
+			String index = WriteAheadLog.fileName(filename, WriteAheadLog.index(field));
+			replace(filename + ".index" + field + ".compact.tree", index);
+		}
+		marker.delete();
+	}
+	
+	/**
+	 * Renames source over target, unless source is gone because it was already renamed
+	 */
+	private static void replace(String source, String target) throws IOException
+	{
+		File built = new File(source);
+		if (!built.exists())
+			return;
+		new File(target).delete();
+		if (!built.renameTo(new File(target)))
+		{
+			throw new IOException("Could not rename " + built);
+		}
+	}
+	
+	/**
+	 * @return The bytes in the table, B Tree and index files
+	 */
+	private long fileBytes()
+	{
+		long bytes = new File(name + ".table").length() + new File(name + ".tree").length();
+		for (int i = 0; i < numOtherFields; i++)
+		{
+			if (indexes[i] != null)
+				bytes += new File(WriteAheadLog.fileName(name, WriteAheadLog.index(i))).length();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Reports how many rows of the table are live and free, and analyzes its B Tree and
+	 * indexes. Inserts and removes wait until it is done, searches and scans do not.
+	 * @return The shape of the table's files, null if they could not be read
+	 */
+	public Report analyze()
+	{
+		writer.lock();
+		try
+		{
+			long length = rowsLength();
+			long slots = (freeRows.end(length) - headerLength()) / rowSize;
+			long tailRows = (freeRows.end(length) - freeRows.tail(length)) / rowSize;
+			BTree.Report indexReports[] = new BTree.Report[numOtherFields];
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				if (indexes[i] != null)
+					indexReports[i] = indexes[i].analyze();
+			}
+			return new Report(rowSize, slots, freeRows.size(), tailRows, tree.analyze(), indexReports);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	/**
+	 * Attempts to remove key from the BTree, if the data in BTree is removed then the data in DBTable is removed
+	 * @param key
+	 * @return Whether or not the specificed key was successfully removed
+	 */
+	public boolean remove(long key) 
+	{
+		long start = metrics.start();
+		boolean removed = false; //Stays false when key is not found
+		long lsn;
+		writer.lock();
+		try
+		{
+			begin();
+			Long addr = tree.remove(key);
+			if (addr != 0) //Key is found
+			{
+				removeFromIndexes(addr);
+				addFree(addr);
+				removed = true;
+			}
+		}
+		finally
+		{
+			lsn = end();
+			writer.unlock();
+		}
+		commit(lsn);
+		metrics.end(Metrics.REMOVE, start, key);
+		return removed;
+	}
+	/**
+	 * Find Row data who's keys are within the range of low to high inclusive.
+	 * @param low - The Lowest key val to search for.
+	 * @param high - The highest key val to search for.
+	 * @return A list of Row Data for each row who's key is within the range of low to high.
+	 */
+	public LinkedList<LinkedList<String>> rangeSearch(long low, long high) 
+	{
+		long start = metrics.start();
+		LinkedList<LinkedList<String>> output = new LinkedList<LinkedList<String>>();
+		RowCursor rows = scan(low, high);
+		while (rows.hasNext())
+		{
+			output.add(rows.next());
+		}
+		rows.close();
+		metrics.end(Metrics.RANGE_SEARCH, start, low);
+		return output; 
+	}
+	
+	/**
+	 * Iterates over the Rows whose keys are within the range of low to high inclusive
+	 * in key order. Rows are read as the iterator reaches them.
+	 * @param low - The Lowest key val to search for.
+	 * @param high - The highest key val to search for.
+	 * @return A RowCursor over the Row data in range.
+	 */
+	public RowCursor scan(long low, long high)
+	{
+		return new RowCursor(low, high);
+	}
+	
+	/**
+	 * Builds an index on one of the other fields, kept up to date by every later insert and
+	 * remove. The index is stored in a .index file next to the table and opened with it.
+	 * Does nothing if the field is already indexed.
+	 * 
+	 * Index keys hold the first INDEX_PREFIX (4) characters of the field and the Row address,
+	 * so an indexed table is limited to 4 GB. Lookups through the index read and compare every
+	 * Row whose field starts with the same characters as the values looked for, an index on
+	 * a field whose values share long prefixes saves little over a scan.
+	 * @param field The position of the field among the other fields
+	 * @throws IllegalArgumentException if the table has no such field
+	 */
+	public void createIndex(int field)
+	{
+		if (field < 0 || field >= numOtherFields)
+		{
+			throw new IllegalArgumentException("No field " + field);
+		}
+		writer.lock();
+		try
+		{
+			if (indexes[field] != null)
+				return;
+			//Built under a temporary name and renamed once it is on disk, so a crash part
+			//way leaves no index behind
+			long entries[] = new long[16];
+			int size = 0;
+			BTree.Cursor c = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+			while (c.next())
+			{
+				if (size == entries.length)
+					entries = Arrays.copyOf(entries, size * 2);
+				entries[size++] = indexKey(new Row(c.address()).otherFields[field], c.address());
+			}
+			Arrays.sort(entries, 0, size);
+			String temp = indexName(field) + ".tmp";
+			BTree index = new BTree(temp, INDEX_BLOCK_SIZE, 8, false);
+			index.bulkLoad(new IndexLoader(entries, size), 1.0);
+			index.checkpoint();
+			index.close();
+			File built = new File(temp + ".tree");
+			File target = new File(WriteAheadLog.fileName(name, WriteAheadLog.index(field)));
+			target.delete();
+			if (!built.renameTo(target))
+			{
+				throw new IOException("Could not rename " + built);
+			}
+			index = new BTree(indexName(field));
+			if (log != null)
+			{
+				index.setLog(log, WriteAheadLog.index(field));
+			}
+			BTree updated[] = indexes.clone();
+			updated[field] = index;
+			indexes = updated;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Finds the Rows whose field equals value. Uses the index on field if there is one,
+	 * otherwise reads every Row. The index narrows the search to the Rows whose field starts
+	 * with the first four characters of value, each of which is read and compared.
+	 * @param field The position of the field among the other fields
+	 * @param value The value to look for, compared as it would be stored in the field
+	 * @return A list of Row Data for each matching row, in key order
+	 * @throws IllegalArgumentException if the table has no such field
+	 */
+	public LinkedList<LinkedList<String>> searchBy(int field, String value)
+	{
+		return rangeSearchBy(field, value, value);
+	}
+	
+	/**
+	 * Finds the Rows whose field is within the range of low to high inclusive. Uses the
+	 * index on field if there is one, otherwise reads every Row. The index narrows the
+	 * search to the Rows from the first four characters of low to those of high, each of
+	 * which is read and compared.
+	 * @param field The position of the field among the other fields
+	 * @param low The lowest value to search for, compared as it would be stored in the field
+	 * @param high The highest value to search for
+	 * @return A list of Row Data for each row in range, ordered by field then by key
+	 * @throws IllegalArgumentException if the table has no such field
+	 */
+	public LinkedList<LinkedList<String>> rangeSearchBy(final int field, String low, String high)
+	{
+		if (field < 0 || field >= numOtherFields)
+		{
+			throw new IllegalArgumentException("No field " + field);
+		}
+		char lowValue[] = Arrays.copyOf(low.toCharArray(), otherFieldLengths[field]);
+		char highValue[] = Arrays.copyOf(high.toCharArray(), otherFieldLengths[field]);
+		ArrayList<Row> found = new ArrayList<Row>();
+		swap.readLock().lock();
+		try
+		{
+			BTree index = indexes[field];
+			BTree.Cursor c;
+			if (index != null) //Every key sharing the prefix of a value in range
+				c = index.cursor(indexKey(lowValue, 0), indexKey(highValue, 0xFFFFFFFFL));
+			else
+				c = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+			while (c.next())
+			{
+				Row r = new Row(c.address());
+				if (!r.isFree && compareField(r.otherFields[field], lowValue) >= 0
+						&& compareField(r.otherFields[field], highValue) <= 0)
+				{
+					found.add(r);
+				}
+			}
+		}
+		finally
+		{
+			swap.readLock().unlock();
+		}
+		Collections.sort(found, new Comparator<Row>()
+		{
+			public int compare(Row a, Row b)
+			{
+				int c = compareField(a.otherFields[field], b.otherFields[field]);
+				return c != 0 ? c : Long.compare(a.keyField, b.keyField);
+			}
+		});
+		LinkedList<LinkedList<String>> output = new LinkedList<LinkedList<String>>();
+		for (Row r : found)
+		{
+			output.add(toList(r));
+		}
+		return output;
+	}
+	
+	/**
+	 * Sets how much memory the rows cached by search, DBSearch and scans may take.
+	 * @param bytes The estimated bytes of rows to cache, 0 disables caching
+	 */
+	public void setRowCacheSize(long bytes)
+	{
+		rowCache.setCapacity(bytes);
+	}
+	
+	/**
+	 * @return The number of row reads served from the row cache
+	 */
+	public long getRowCacheHits()
+	{
+		return rowCache.getHits();
+	}
+	
+	/**
+	 * @return The number of row reads that went to the file
+	 */
+	public long getRowCacheMisses()
+	{
+		return rowCache.getMisses();
+	}
+	
+	/**
+	 * @return The number of rows evicted from the row cache
+	 */
+	public long getRowCacheEvictions()
+	{
+		return rowCache.getEvictions();
+	}
+	
+	/**
+	 * @return The fraction of row reads served from the row cache, 0 before any read
+	 */
+	public double getRowCacheHitRate()
+	{
+		long hits = rowCache.getHits();
+		long total = hits + rowCache.getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+	
+	/**
+	 * @return The columns of the keys of this table
+	 */
+	public KeySchema getKeySchema()
+	{
+		return keySchema;
+	}
+	
+	/**
+	 * Sets how many B Tree nodes are kept in memory.
+	 * @param numPages The number of nodes to cache, 0 disables caching
+	 */
+	public void setCacheSize(int numPages)
+	{
+		tree.setCacheSize(numPages);
+	}
+	
+	/**
+	 * Logs every insert and remove to a write-ahead log in a .wal file before the table and
+	 * B Tree files change, so the table survives a crash. Each call returns once its change
+	 * is forced to disk, calls from many threads share one fsync. Rows and B Tree nodes are
+	 * written in place at checkpoints, when the log grows large and on close. A table whose
+	 * log is not empty is recovered when it is opened, whether or not the log is enabled.
+	 */
+	public void enableLog()
+	{
+		writer.lock();
+		try
+		{
+			if (log != null)
+				return;
+			forceFiles();
+			log = new WriteAheadLog(name);
+			setTreeLogs(log);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Updates the DBTable and closes the B Tree.
+	 */
+	public void close() 
+	{
+		metrics.unregister();
+		writer.lock();
+		try 
+		{
+			if (log != null)
+			{
+				checkpoint();
+				setTreeLogs(null);
+				log.close();
+				log = null;
+				new File(name + ".wal").delete();
+			}
+			writeHeader();
+			rows.close();
+			tree.close();
+			for (BTree index : indexes)
+			{
+				if (index != null)
+					index.close();
+			}
+		} 
+		catch (IOException e) 
+		{
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		finally
+		{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Writes numOtherFields, the field lengths, the key columns and free to the start of the file
+	 * @throws IOException
+	 */
+	private void writeHeader() throws IOException
+	{
+		synchronized (rows)
+		{
+			rows.seek(0);
+			rows.write(header());
+		}
+	}
+	
+	/**
+	 * @return The header as it is stored at the start of the file
+	 */
+	private byte[] header()
+	{
+		//The number of key columns goes in the high byte of numOtherFields, 0 for int keys,
+		//and the row format and FREE_FLAG in the byte below it
+		int keyColumns = keySchema.isDefault() ? 0 : keySchema.columns();
+		ByteBuffer header = ByteBuffer.allocate(headerLength());
+		int format = rowFormat | (freeFlag ? FREE_FLAG : 0);
+		header.putInt(numOtherFields | (format << 16) | (keyColumns << 24));
+		for (int i = 0; i < numOtherFields; i++)
+		{
+			header.putInt(otherFieldLengths[i]);
+		}
+		for (int i = 0; i < keyColumns; i++)
+		{
+			header.putInt(keySchema.width(i));
+		}
+		header.putLong(freeRows.first());
+		return header.array();
+	}
+	
+	/**
+	 * @return The number of bytes in the header, the first row starts after it
+	 */
+	private int headerLength()
+	{
+		int keyColumns = keySchema.isDefault() ? 0 : keySchema.columns();
+		return 4 + 4 * numOtherFields + 4 * keyColumns + 8;
+	}
+	
+	/**
+	 * Starts a logged transaction. The caller holds the writer lock.
+	 */
+	private void begin()
+	{
+		if (log != null)
+		{
+			log.begin();
+		}
+	}
+	
+	/**
+	 * Logs the header and ends the transaction, checkpointing if the log has grown large.
+	 * The caller holds the writer lock.
+	 * @return The log position to wait for, 0 if there is nothing to wait for
+	 */
+	private long end()
+	{
+		if (log == null)
+		{
+			return 0;
+		}
+		try
+		{
+			log.add(WriteAheadLog.TABLE, 0, header());
+			long lsn = log.end();
+			if (log.size() > CHECKPOINT_BYTES)
+			{
+				checkpoint();
+			}
+			return lsn;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return 0;
+		}
+	}
+	
+	/**
+	 * Waits until the transaction is durable. Called after the writer lock is released so
+	 * other callers can join the same fsync.
+	 * @param lsn A position returned by end
+	 */
+	private void commit(long lsn)
+	{
+		WriteAheadLog l = log;
+		if (lsn == 0 || l == null)
+			return;
+		try
+		{
+			l.commit(lsn);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Writes the pending rows, the B Tree nodes and both headers in place, forces both
+	 * files to disk and empties the log. The caller holds the writer lock.
+	 * @throws IOException
+	 */
+	private void checkpoint() throws IOException
+	{
+		log.force();
+		synchronized (rows)
+		{
+			for (Map.Entry<Long, byte[]> e : pendingRows.entrySet())
+			{
+				rows.seek(e.getKey());
+				rows.write(e.getValue());
+			}
+			pendingRows.clear();
+			pendingEnd = 0;
+			writeHeader();
+			rows.getChannel().force(true);
+		}
+		tree.checkpoint();
+		for (BTree index : indexes)
+		{
+			if (index != null)
+				index.checkpoint();
+		}
+		log.reset();
+	}
+	
+	/**
+	 * Writes the header, the B Tree nodes and the index nodes in place and forces every
+	 * file to disk. The caller holds the writer lock and nothing is pending in the log.
+	 * @throws IOException
+	 */
+	private void forceFiles() throws IOException
+	{
+		synchronized (rows)
+		{
+			writeHeader();
+			rows.getChannel().force(true);
+		}
+		tree.checkpoint();
+		for (BTree index : indexes)
+		{
+			if (index != null)
+				index.checkpoint();
+		}
+	}
+	
+	/**
+	 * Sets the log of the B Tree and every index. The caller holds the writer lock.
+	 * @param l The log, null to stop logging
+	 * @throws IOException
+	 */
+	private void setTreeLogs(WriteAheadLog l) throws IOException
+	{
+		tree.setLog(l);
+		for (int i = 0; i < indexes.length; i++)
+		{
+			if (indexes[i] != null)
+				indexes[i].setLog(l, WriteAheadLog.index(i));
+		}
+	}
+	
+	/**
+	 * @param bytes The bytes of the key and other fields of a row
+	 * @param flag Whether rows end with the free flag
+	 * @return The bytes each row takes in the file, with room for a free row's nextFree
+	 * and the free flag or emptyChar
+	 */
+	private int paddedSize(int bytes, boolean flag)
+	{
+		if (flag)
+			return Math.max(bytes + 1, 9);
+		return rowFormat == UTF16 ? bytes : Math.max(bytes, 10); //UTF16 tables were never padded
+	}
+	
+	/**
+	 * @return The bytes read for a row, a free row of a table without the free flag takes
+	 * at least nextFree and emptyChar
+	 */
+	private int imageSize()
+	{
+		return freeFlag ? rowSize : Math.max(rowSize, 10);
+	}
+	
+	/**
+	 * @return The number of bytes each character of a field takes in a row
+	 */
+	private int bytesPerChar()
+	{
+		return rowFormat == UTF16 ? 2 : 1;
+	}
+	
+	/**
+	 * @return The name of the index on field, without the .tree extension
+	 */
+	private String indexName(int field)
+	{
+		return name + ".index" + field;
+	}
+	
+	/**
+	 * The key of a Row in an index. The first characters of the field, each cut to a byte,
+	 * go in the high half so keys sort like the field. The Row address in the low half
+	 * tells apart rows with the same characters.
+	 * @param value The field of the Row
+	 * @param addr The address of the Row
+	 * @return The index key
+	 * @throws IllegalStateException if the address does not fit in the low half
+	 */
+	private long indexKey(char value[], long addr)
+	{
+		if (addr >>> 32 != 0) //Inserts call checkIndexable before they write anything
+		{
+			throw new IllegalStateException("Indexed tables are limited to 4 GB");
+		}
+		long prefix = 0;
+		for (int i = 0; i < INDEX_PREFIX; i++)
+		{
+			char c = i < value.length ? value[i] : nonChar;
+			prefix = (prefix << 8) | Math.min(c, 255);
+		}
+		return ((prefix ^ 0x80000000L) << 32) | addr; //Flip the sign bit so keys sort unsigned
+	}
+	
+	/**
+	 * Checks a Row at addr can be added to the indexes, before anything is written for it
+	 * @param addr The highest address the Row can be written to
+	 * @throws IllegalStateException if the table has an index and addr does not fit in the
+	 * low half of an index key
+	 */
+	private void checkIndexable(long addr)
+	{
+		if (addr >>> 32 == 0)
+			return;
+		for (BTree index : indexes)
+		{
+			if (index != null)
+				throw new IllegalStateException("Indexed tables are limited to 4 GB");
+		}
+	}
+	
+	/**
+	 * Adds a new Row to every index. The caller holds the writer lock.
+	 */
+	private void addToIndexes(long addr, Row r)
+	{
+		char fields[][] = null;
+		for (int i = 0; i < indexes.length; i++)
+		{
+			if (indexes[i] != null)
+			{
+				if (fields == null)
+					fields = r.storedFields(); //Indexed as it reads back, like remove sees it
+				indexes[i].insert(indexKey(fields[i], addr), addr);
+			}
+		}
+	}
+	
+	/**
+	 * Removes a Row from every index before it is freed. The caller holds the writer lock.
+	 */
+	private void removeFromIndexes(long addr)
+	{
+		Row r = null;
+		for (int i = 0; i < indexes.length; i++)
+		{
+			if (indexes[i] != null)
+			{
+				if (r == null)
+					r = new Row(addr);
+				indexes[i].remove(indexKey(r.otherFields[i], addr));
+			}
+		}
+	}
+	
+	/**
+	 * Compares two fields character by character, padding sorts first
+	 */
+	private static int compareField(char a[], char b[])
+	{
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++)
+		{
+			if (a[i] != b[i])
+				return a[i] - b[i];
+		}
+		return a.length - b.length;
+	}
+	
+	/**
+	 * A sequence of rows, read one at a time.
+	 */
+	public interface RowSource
+	{
+		/**
+		 * Moves to the next row
+		 * @return true if there is a row, false if the sequence is exhausted
+		 */
+		public boolean next();
+		
+		/**
+		 * @return The key of the current row
+		 */
+		public long key();
+		
+		/**
+		 * @return The other fields of the current row, each the length the DBTable expects
+		 */
+		public char[][] fields();
+	}
+	
+	/**
+	 * Writes each row of a RowSource to the end of the table and hands its key
+	 * and address to the BTree.
+	 */
+	private class RowLoader implements BTree.KeySource
+	{
+		private RowSource source;
+		private boolean started;
+		private long key;
+		private long addr;
+		
+		private RowLoader(RowSource s)
+		{
+			source = s;
+		}
+		
+		public boolean next()
+		{
+			while (source.next())
+			{
+				long k = source.key();
+				checkKey(k);
+				if (started && k == key)
+					continue; //Duplicate, keep the first
+				if (started && k < key)
+					throw new IllegalArgumentException("bulkLoad keys must be in ascending order");
+				started = true;
+				key = k;
+				try
+				{
+					addr = rowsLength();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+				checkIndexable(addr);
+				Row r = new Row(key, source.fields());
+				writeRow(addr, r);
+				addToIndexes(addr, r);
+				return true;
+			}
+			return false;
+		}
+		
+		public long key()
+		{
+			return key;
+		}
+		
+		public long address()
+		{
+			return addr;
+		}
+	}
+	
+	/**
+	 * Hands sorted index keys to BTree.bulkLoad, each with the Row address in its low half.
+	 */
+	private static class IndexLoader implements BTree.KeySource
+	{
+		private long keys[];
+		private int size;
+		private int pos = -1;
+		
+		private IndexLoader(long k[], int s)
+		{
+			keys = k;
+			size = s;
+		}
+		
+		public boolean next()
+		{
+			pos++;
+			return pos < size;
+		}
+		
+		public long key()
+		{
+			return keys[pos];
+		}
+		
+		public long address()
+		{
+			return keys[pos] & 0xFFFFFFFFL;
+		}
+	}
+	
+	/**
+	 * Copies the rows of the table to a new table file in key order and hands their keys
+	 * and new addresses to the new BTree. Keeps the index key of each row at its new address
+	 * for every indexed field. Rows of a table without the free flag get it in the new file.
+	 */
+	private class CompactLoader implements BTree.KeySource
+	{
+		private BTree.Cursor inOrder = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+		private FileChannel out;
+		private int copied = rowSize; //Bytes of each row copied, the key and other fields without the free flag
+		private int size = rowSize; //Bytes of each row in the new file
+		private ByteBuffer buffer;
+		private long written = headerLength(); //Bytes of rows already in the file
+		private long addr; //New address of the current row
+		private long indexKeys[][] = new long[numOtherFields][];
+		private int loaded;
+		
+		private CompactLoader(FileChannel o)
+		{
+			out = o;
+			if (!freeFlag)
+			{
+				copied = keySchema.keySize();
+				for (int i = 0; i < numOtherFields; i++)
+				{
+					copied += otherFieldLengths[i] * bytesPerChar();
+				}
+				size = paddedSize(copied, true);
+			}
+			buffer = ByteBuffer.allocate(Math.max(COMPACT_BUFFER_BYTES, size));
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				if (indexes[i] != null)
+					indexKeys[i] = new long[16];
+			}
+		}
+		
+		public boolean next()
+		{
+			if (!inOrder.next())
+			{
+				return false;
+			}
+			try
+			{
+				byte image[] = readRow(inOrder.address());
+				addr = written + buffer.position();
+				Row r = null;
+				for (int i = 0; i < numOtherFields; i++)
+				{
+					if (indexKeys[i] == null)
+						continue;
+					if (r == null)
+						r = new Row(image);
+					if (loaded == indexKeys[i].length)
+						indexKeys[i] = Arrays.copyOf(indexKeys[i], loaded * 2);
+					indexKeys[i][loaded] = indexKey(r.otherFields[i], addr);
+				}
+				if (buffer.remaining() < size)
+				{
+					flush();
+				}
+				buffer.put(image, 0, copied);
+				for (int i = copied; i < size; i++)
+				{
+					buffer.put((byte) 0); //Padding and a free flag of 0
+				}
+				loaded++;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			return true;
+		}
+		
+		public long key()
+		{
+			return inOrder.key();
+		}
+		
+		public long address()
+		{
+			return addr;
+		}
+		
+		/**
+		 * Writes the last rows and the header, whose free list is empty, and forces the file
+		 */
+		private void finish() throws IOException
+		{
+			flush();
+			ByteBuffer header = ByteBuffer.wrap(header());
+			header.putLong(header.limit() - 8, 0);
+			header.putInt(0, header.getInt(0) | FREE_FLAG << 16);
+			while (header.hasRemaining())
+			{
+				out.write(header, header.position());
+			}
+			out.force(true);
+		}
+		
+		private void flush() throws IOException
+		{
+			buffer.flip();
+			while (buffer.hasRemaining())
+			{
+				written += out.write(buffer, written);
+			}
+			buffer.clear();
+		}
+	}
+	
+	/**
+	 * What analyze found: the live and free rows of the table and the shape of its B Tree
+	 * and indexes
+	 */
+	public static class Report
+	{
+		private int rowSize;
+		private long rows; //Rows in the file, live or free
+		private long freeRows;
+		private long tailFreeRows; //Free rows at the end of the file
+		private BTree.Report tree;
+		private BTree.Report indexes[];
+		
+		private Report(int size, long r, long free, long tail, BTree.Report t, BTree.Report i[])
+		{
+			rowSize = size;
+			rows = r;
+			freeRows = free;
+			tailFreeRows = tail;
+			tree = t;
+			indexes = i;
+		}
+		
+		/**
+		 * @return The bytes in each row
+		 */
+		public int getRowSize()
+		{
+			return rowSize;
+		}
+		
+		/**
+		 * @return The number of rows in the file, live or free
+		 */
+		public long getRows()
+		{
+			return rows;
+		}
+		
+		public long getLiveRows()
+		{
+			return rows - freeRows;
+		}
+		
+		/**
+		 * @return The number of rows in the free list
+		 */
+		public long getFreeRows()
+		{
+			return freeRows;
+		}
+		
+		/**
+		 * @return The number of live rows for each free row, infinite if no row is free
+		 */
+		public double getLiveToFreeRatio()
+		{
+			return freeRows == 0 ? Double.POSITIVE_INFINITY : (double) getLiveRows() / freeRows;
+		}
+		
+		/**
+		 * @return The number of free rows at the end of the file, which truncateFreeSpace
+		 * would cut off
+		 */
+		public long getTailFreeRows()
+		{
+			return tailFreeRows;
+		}
+		
+		/**
+		 * @return What BTree.analyze found in the table's B Tree
+		 */
+		public BTree.Report getTree()
+		{
+			return tree;
+		}
+		
+		/**
+		 * @return What BTree.analyze found in the index on a field, null if the field has
+		 * no index
+		 */
+		public BTree.Report getIndex(int field)
+		{
+			return indexes[field];
+		}
+		
+		public String toString()
+		{
+			StringBuilder out = new StringBuilder();
+			out.append(String.format("rows: %d of %d bytes, %d live, %d free, %.2f live per free, %d free at the end%n",
+					rows, rowSize, getLiveRows(), freeRows, getLiveToFreeRatio(), tailFreeRows));
+			out.append("B Tree: ").append(tree);
+			for (int i = 0; i < indexes.length; i++)
+			{
+				if (indexes[i] != null)
+					out.append('\n').append("index on field ").append(i).append(": ").append(indexes[i]);
+			}
+			return out.toString();
+		}
+	}
+	
+	/**
+	 * What compact did to the size of the table's files
+	 */
+	public static class Compaction
+	{
+		private long bytesBefore;
+		private long bytesAfter;
+		private long nanos;
+		
+		private Compaction(long before, long after, long n)
+		{
+			bytesBefore = before;
+			bytesAfter = after;
+			nanos = n;
+		}
+		
+		/**
+		 * @return The bytes in the table, B Tree and index files before compacting
+		 */
+		public long getBytesBefore()
+		{
+			return bytesBefore;
+		}
+		
+		/**
+		 * @return The bytes in the files after compacting
+		 */
+		public long getBytesAfter()
+		{
+			return bytesAfter;
+		}
+		
+		/**
+		 * @return The bytes compacting freed, negative if the files grew
+		 */
+		public long getBytesReclaimed()
+		{
+			return bytesBefore - bytesAfter;
+		}
+		
+		/**
+		 * @return How long compacting took in milliseconds
+		 */
+		public long getMillis()
+		{
+			return nanos / 1000000;
+		}
+		
+		public String toString()
+		{
+			return "Reclaimed " + getBytesReclaimed() + " of " + bytesBefore + " bytes in " + getMillis() + " ms";
+		}
+	}
+	
+	/**
+	 * The MBean of the table, registered while it is open
+	 */
+	private class Monitor implements DBTableMXBean
+	{
+		public String getFile()
+		{
+			return metrics.getFile();
+		}
+		
+		public int getFreeRows()
+		{
+			return freeRows.size();
+		}
+		
+		public long getFileBytes()
+		{
+			return fileBytes();
+		}
+		
+		public long getCompactions()
+		{
+			return compactions;
+		}
+		
+		public long getRowCacheHits()
+		{
+			return DBTable.this.getRowCacheHits();
+		}
+		
+		public long getRowCacheMisses()
+		{
+			return DBTable.this.getRowCacheMisses();
+		}
+		
+		public long getRowCacheEvictions()
+		{
+			return DBTable.this.getRowCacheEvictions();
+		}
+		
+		public double getRowCacheHitRate()
+		{
+			return DBTable.this.getRowCacheHitRate();
+		}
+		
+		public LatencySummary getInsertLatency()
+		{
+			return metrics.latency(Metrics.INSERT);
+		}
+		
+		public LatencySummary getSearchLatency()
+		{
+			return metrics.latency(Metrics.SEARCH);
+		}
+		
+		public LatencySummary getRemoveLatency()
+		{
+			return metrics.latency(Metrics.REMOVE);
+		}
+		
+		public LatencySummary getRangeSearchLatency()
+		{
+			return metrics.latency(Metrics.RANGE_SEARCH);
+		}
+		
+		public LatencySummary getSearchManyLatency()
+		{
+			return metrics.latency(Metrics.SEARCH_MANY);
+		}
+		
+		public long getSlowOperationMillis()
+		{
+			return metrics.getSlowNanos() / 1000000;
+		}
+		
+		public void setSlowOperationMillis(long millis)
+		{
+			metrics.setSlowNanos(millis * 1000000);
+		}
+	}
+	
+	/**
+	 * Iterator over Row data backed by a BTree cursor. Each Row is read one step ahead of
+	 * the iterator, so Rows removed or reused for another key after their keys were found
+	 * are skipped.
+	 */
+	public class RowCursor implements Iterator<LinkedList<String>>, Closeable
+	{
+		private BTree.Cursor keys;
+		private boolean more; //keys is on a key whose Row is not read yet
+		private String upcoming[]; //Fields of the Row next() returns, null at the end
+		private long upcomingKey;
+		private long key; //Key of the Row last returned by next()
+		private long high;
+		private long generation; //compactions when keys was opened
+		
+		private RowCursor(long low, long h)
+		{
+			high = h;
+			swap.readLock().lock();
+			try
+			{
+				generation = compactions;
+				keys = tree.cursor(low, high);
+				more = keys.next();
+				advance();
+			}
+			finally
+			{
+				swap.readLock().unlock();
+			}
+		}
+		
+		public boolean hasNext()
+		{
+			return upcoming != null;
+		}
+		
+		/**
+		 * @return a list of elements from the next Row in range
+		 */
+		public LinkedList<String> next()
+		{
+			if (upcoming == null)
+			{
+				throw new NoSuchElementException();
+			}
+			LinkedList<String> row = new LinkedList<String>(Arrays.asList(upcoming));
+			key = upcomingKey;
+			swap.readLock().lock();
+			try
+			{
+				advance();
+			}
+			finally
+			{
+				swap.readLock().unlock();
+			}
+			return row;
+		}
+		
+		/**
+		 * Reads the Row of the next key whose Row is still its own. The caller holds the
+		 * swap read lock.
+		 */
+		private void advance()
+		{
+			upcoming = null;
+			while (more)
+			{
+				if (generation != compactions) //Rows moved, find the next key in the new B Tree
+				{
+					generation = compactions;
+					keys = tree.cursor(keys.key(), high);
+					if (!keys.next())
+					{
+						more = false;
+						return;
+					}
+				}
+				long k = keys.key();
+				String fields[] = readFields(keys.address(), k);
+				more = keys.next();
+				if (fields != null)
+				{
+					upcoming = fields;
+					upcomingKey = k;
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * @return the key of the Row last returned by next()
+		 */
+		public long key()
+		{
+			return key;
+		}
+		
+		public void close()
+		{
+			keys.close();
+			more = false;
+			upcoming = null;
+		}
+	}
+	
+	private class Row 
+	{
+		private long keyField;
 		private char otherFields[][];
 		private long nextFree;
 		private boolean isFree;
 		
 		//Constructors and other Row methods
-		public Row(int k, char[][] otf)
+		public Row(long k, char[][] otf)
 		{
 			keyField = k;
 			otherFields = otf;
@@ -313,38 +2240,186 @@ public class DBTable
 		{
 			try 
 			{
-				rows.seek(addr);
-				rows.skipBytes(8);
-				if (rows.readChar() != emptyChar) //Row is not Empty
+				read(ByteBuffer.wrap(readRow(addr)));
+			}
+			catch (IOException e) 
+			{
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+		}
+		
+		/**
+		 * Reads a Row from its bytes in the DBTable file
+		 * @param image - the row as readRow returns it
+		 */
+		public Row(byte image[])
+		{
+			read(ByteBuffer.wrap(image));
+		}
+		
+		private void read(ByteBuffer image)
+		{
+			boolean free;
+			if (freeFlag)
+				free = image.get(rowSize - 1) == 1;
+			else
+				free = image.limit() >= 10 && image.getChar(8) == emptyChar;
+			if (!free) //Row is not Empty
+			{
+				nextFree = 0;
+				isFree = false;
+				keyField = keySchema.keySize() == 4 ? image.getInt() : image.getLong();
+				otherFields = new char[numOtherFields][];
+				for (int i = 0; i < numOtherFields; i++)
+				{
+					otherFields[i] = decodeField(image, otherFieldLengths[i]);
+				}
+			}
+			else //Row is Empty
+			{
+				nextFree = image.getLong();
+				isFree = true;
+				keyField = 0;
+				otherFields = null;
+			}
+		}
+		
+		/**
+		 * @return The Row as it is stored in the DBTable file
+		 */
+		private byte[] toBytes()
+		{
+			if (isFree) //nextFree and the free flag or emptyChar, the rest zeroed
+			{
+				ByteBuffer image = ByteBuffer.allocate(imageSize());
+				image.putLong(nextFree);
+				if (freeFlag)
+					image.put(rowSize - 1, (byte) 1);
+				else
+					image.putChar(emptyChar);
+				return image.array();
+			}
+			int size = rowSize;
+			if (rowFormat == UTF16)
+			{
+				size = keySchema.keySize();
+				for (int i = 0; i < numOtherFields; i++)
+				{
+					size += otherFields[i].length * 2; //rowSize when the fields have the expected lengths
+				}
+				if (freeFlag)
+					size = Math.max(size + 1, rowSize); //The free flag stays 0
+			}
+			ByteBuffer image = ByteBuffer.allocate(size);
+			if (keySchema.keySize() == 4)
+				image.putInt((int) keyField);
+			else
+				image.putLong(keyField);
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				encodeField(image, otherFields[i], otherFieldLengths[i]);
+			}
+			return image.array();
+		}
+		
+		/**
+		 * @return The other fields as they read back from the file, which in the LATIN1
+		 * and UTF8 formats can differ from the fields written
+		 */
+		private char[][] storedFields()
+		{
+			if (rowFormat == UTF16)
+			{
+				return otherFields;
+			}
+			ByteBuffer image = ByteBuffer.wrap(toBytes());
+			image.position(keySchema.keySize());
+			char fields[][] = new char[numOtherFields][];
+			for (int i = 0; i < numOtherFields; i++)
+			{
+				fields[i] = decodeField(image, otherFieldLengths[i]);
+			}
+			return fields;
+		}
+		
+		/**
+		 * Puts a field in the row format. LATIN1 and UTF8 fields take exactly length bytes,
+		 * padded with zeros.
+		 */
+		private void encodeField(ByteBuffer image, char field[], int length)
+		{
+			if (rowFormat == UTF16)
+			{
+				for (int j = 0; j < field.length; j++)
+				{
+					image.putChar(field[j]);
+				}
+				return;
+			}
+			int start = image.position();
+			if (rowFormat == LATIN1)
+			{
+				for (int j = 0; j < Math.min(field.length, length); j++)
 				{
-					rows.seek(addr);
-					nextFree = 0;
-					isFree = false;
-					keyField = rows.readInt();
-					otherFields = new char[numOtherFields][];
-					for (int i = 0; i < numOtherFields; i++)
+					image.put((byte) (field[j] <= 255 ? field[j] : '?'));
+				}
+			}
+			else
+			{
+				int used = field.length;
+				while (used > 0 && field[used - 1] == nonChar)
+				{
+					used--; //Padding is not encoded
+				}
+				byte bytes[] = new String(field, 0, used).getBytes(StandardCharsets.UTF_8);
+				int n = Math.min(bytes.length, length);
+				if (n < bytes.length)
+				{
+					while (n > 0 && (bytes[n] & 0xC0) == 0x80)
 					{
-						otherFields[i] = new char[otherFieldLengths[i]];
-						for(int j = 0; j < otherFieldLengths[i]; j++)
-						{
-							otherFields[i][j] = rows.readChar();
-						}
+						n--; //Cut before the character that does not fit
 					}
 				}
-				else //Row is Empty
+				image.put(bytes, 0, n);
+			}
+			image.position(start + length); //Rest stays zeroed
+		}
+		
+		/**
+		 * Reads a field in the row format
+		 * @return The field, padded to length characters
+		 */
+		private char[] decodeField(ByteBuffer image, int length)
+		{
+			char field[] = new char[length];
+			if (rowFormat == UTF16)
+			{
+				for (int j = 0; j < length; j++)
+				{
+					field[j] = image.getChar();
+				}
+			}
+			else if (rowFormat == LATIN1)
+			{
+				for (int j = 0; j < length; j++)
 				{
-					rows.seek(addr);
-					nextFree = rows.readLong();
-					isFree = true;
-					keyField = 0;
-					otherFields = null;
+					field[j] = (char) (image.get() & 0xFF);
 				}
 			}
-			catch (IOException e) 
+			else
 			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				int start = image.position();
+				int used = length;
+				while (used > 0 && image.get(start + used - 1) == 0)
+				{
+					used--;
+				}
+				String s = new String(image.array(), start, used, StandardCharsets.UTF_8);
+				s.getChars(0, s.length(), field, 0);
+				image.position(start + length);
 			}
+			return field;
 		}
 		
 		private void setToFree()
@@ -0,0 +1,54 @@
+/**
+ * @author Lucas Rappette
+ */
+
+/**
+ * What an open DBTable publishes over JMX, as rappette.btree:type=DBTable,name="file.table".
+ * Its B Tree and indexes publish their own BTreeMXBeans. Counters start at zero when the
+ * table is opened.
+ */
+public interface DBTableMXBean
+{
+
+	/**
+	 * @return The path of the .table file
+	 */
+	public String getFile();
+
+	/**
+	 * @return The number of rows in the free list
+	 */
+	public int getFreeRows();
+
+	/**
+	 * @return The bytes in the table, B Tree and index files
+	 */
+	public long getFileBytes();
+
+	public long getCompactions();
+
+	public long getRowCacheHits();
+
+	public long getRowCacheMisses();
+
+	public long getRowCacheEvictions();
+
+	public double getRowCacheHitRate();
+
+	public LatencySummary getInsertLatency();
+
+	public LatencySummary getSearchLatency();
+
+	public LatencySummary getRemoveLatency();
+
+	public LatencySummary getRangeSearchLatency();
+
+	public LatencySummary getSearchManyLatency();
+
+	/**
+	 * @return Operations that take at least this many milliseconds emit a JFR event
+	 */
+	public long getSlowOperationMillis();
+
+	public void setSlowOperationMillis(long millis);
+}
\ No newline at end of file
@@ -0,0 +1,360 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts the rows of a key,field,field... text file by key with a bounded amount of memory.
+ * Rows are read in chunks that fit the memory budget, each chunk is sorted and spilled to a
+ * temporary run file, and the runs are merged back together as the rows are read.
+ * When a key appears more than once only its first row in the file is kept, like DBTable.insert.
+ * The sorted rows can be handed straight to DBTable.bulkLoad.
+ */
+public class ExternalSort implements DBTable.RowSource
+{
+
+	private static final int RUN_BUFFER = 1 << 16; //Bytes buffered for each run while merging
+	private static final int ROW_OVERHEAD = 64; //Estimated object overhead of a row held in memory
+
+	private int fieldLengths[];
+	private long memoryBudget;
+	private ArrayList<File> runs; //Sorted run files, in the order their rows appear in the input
+	private ArrayList<SortRow> memoryRun; //Last chunk when it is never spilled
+	private int memoryPos;
+	private PriorityQueue<RunReader> merge;
+	private ArrayList<RunReader> readers;
+	private SortRow current;
+	private boolean started;
+
+	/**
+	 * Reads and sorts a text file of rows.
+	 * @param filename The file to read, one key,field,field... row per line
+	 * @param fL The length of each field, longer fields are cut and shorter ones padded
+	 * @param budget The number of bytes of rows to hold in memory at once
+	 * @throws IOException
+	 */
+	public ExternalSort(String filename, int fL[], long budget) throws IOException
+	{
+		fieldLengths = fL;
+		memoryBudget = Math.max(budget, 2 * RUN_BUFFER);
+		runs = new ArrayList<File>();
+		readers = new ArrayList<RunReader>();
+
+		long rowBytes = ROW_OVERHEAD + 8;
+		for (int len : fieldLengths)
+		{
+			rowBytes += ROW_OVERHEAD + len * 2;
+		}
+		long rowsPerRun = Math.max(1, memoryBudget / rowBytes);
+
+		BufferedReader b = new BufferedReader(new FileReader(filename));
+		ArrayList<SortRow> chunk = new ArrayList<SortRow>();
+		String line;
+		while ((line = b.readLine()) != null)
+		{
+			if (line.length() == 0)
+				continue;
+			String fields[] = line.split(",");
+			char f[][] = new char[fieldLengths.length][];
+			for (int i = 0; i < f.length; i++)
+			{
+				String field = i + 1 < fields.length ? fields[i + 1] : "";
+				f[i] = Arrays.copyOf(field.toCharArray(), fieldLengths[i]);
+			}
+			chunk.add(new SortRow(Long.parseLong(fields[0].trim()), f));
+			if (chunk.size() == rowsPerRun)
+			{
+				runs.add(spill(chunk));
+				chunk.clear();
+			}
+		}
+		b.close();
+
+		if (runs.isEmpty()) //Everything fit in memory
+		{
+			sortChunk(chunk);
+			memoryRun = chunk;
+		}
+		else
+		{
+			if (!chunk.isEmpty())
+				runs.add(spill(chunk));
+			chunk = null;
+			int fanIn = (int) Math.max(2, memoryBudget / RUN_BUFFER);
+			while (runs.size() > fanIn) //Merge the oldest runs so every run can be open at once
+			{
+				ArrayList<File> group = new ArrayList<File>(runs.subList(0, fanIn));
+				runs.subList(0, fanIn).clear();
+				runs.add(0, mergeRuns(group));
+			}
+			merge = openRuns(runs);
+		}
+	}
+
+	/**
+	 * Moves to the next row in key order, skipping rows whose key was already returned
+	 * @return true if there is a row, false once every row has been returned
+	 */
+	public boolean next()
+	{
+		try
+		{
+			SortRow row = nextRow();
+			while (row != null && started && row.key == current.key)
+			{
+				row = nextRow();
+			}
+			if (row == null)
+			{
+				close();
+				return false;
+			}
+			current = row;
+			started = true;
+			return true;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			close();
+			return false;
+		}
+	}
+
+	public long key()
+	{
+		return current.key;
+	}
+
+	public char[][] fields()
+	{
+		return current.fields;
+	}
+
+	/**
+	 * Closes and deletes the run files. next() returns false afterwards.
+	 */
+	public void close()
+	{
+		for (RunReader r : readers)
+		{
+			r.close();
+		}
+		readers.clear();
+		for (File run : runs)
+		{
+			run.delete();
+		}
+		runs.clear();
+		merge = null;
+		memoryRun = null;
+	}
+
+	/**
+	 * @return The next row of the merged runs including repeated keys, or null when done
+	 */
+	private SortRow nextRow() throws IOException
+	{
+		if (memoryRun != null)
+		{
+			return memoryPos < memoryRun.size() ? memoryRun.get(memoryPos++) : null;
+		}
+		if (merge == null || merge.isEmpty())
+		{
+			return null;
+		}
+		RunReader r = merge.poll();
+		SortRow row = r.row;
+		if (r.advance())
+		{
+			merge.add(r);
+		}
+		return row;
+	}
+
+	/**
+	 * Sorts a chunk by key. The sort is stable so rows with the same key stay in file order.
+	 */
+	private void sortChunk(ArrayList<SortRow> chunk)
+	{
+		Collections.sort(chunk, new Comparator<SortRow>()
+		{
+			public int compare(SortRow a, SortRow b)
+			{
+				return Long.compare(a.key, b.key);
+			}
+		});
+	}
+
+	/**
+	 * Sorts a chunk and writes it to a new run file
+	 * @return The run file
+	 */
+	private File spill(ArrayList<SortRow> chunk) throws IOException
+	{
+		sortChunk(chunk);
+		File run = File.createTempFile("btree-run", ".tmp");
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER));
+		for (SortRow row : chunk)
+		{
+			writeRow(out, row);
+		}
+		out.close();
+		return run;
+	}
+
+	/**
+	 * Merges runs that follow each other in the input into one run file and deletes them
+	 * @return The merged run file
+	 */
+	private File mergeRuns(ArrayList<File> group) throws IOException
+	{
+		File run = File.createTempFile("btree-run", ".tmp");
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER));
+		PriorityQueue<RunReader> queue = openRuns(group);
+		while (!queue.isEmpty())
+		{
+			RunReader r = queue.poll();
+			writeRow(out, r.row);
+			if (r.advance())
+			{
+				queue.add(r);
+			}
+		}
+		out.close();
+		for (RunReader r : readers)
+		{
+			r.close();
+		}
+		readers.clear();
+		for (File f : group)
+		{
+			f.delete();
+		}
+		return run;
+	}
+
+	/**
+	 * Opens a reader on each run. Ties on a key go to the run that comes first in the input.
+	 */
+	private PriorityQueue<RunReader> openRuns(ArrayList<File> group) throws IOException
+	{
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, group.size()), new Comparator<RunReader>()
+		{
+			public int compare(RunReader a, RunReader b)
+			{
+				if (a.row.key != b.row.key)
+					return Long.compare(a.row.key, b.row.key);
+				return Integer.compare(a.index, b.index);
+			}
+		});
+		for (int i = 0; i < group.size(); i++)
+		{
+			RunReader r = new RunReader(group.get(i), i);
+			readers.add(r);
+			if (r.advance())
+			{
+				queue.add(r);
+			}
+		}
+		return queue;
+	}
+
+	private void writeRow(DataOutputStream out, SortRow row) throws IOException
+	{
+		out.writeLong(row.key);
+		for (char[] field : row.fields)
+		{
+			for (char c : field)
+			{
+				out.writeChar(c);
+			}
+		}
+	}
+
+	private class SortRow
+	{
+		private long key;
+		private char fields[][];
+
+		public SortRow(long k, char[][] f)
+		{
+			key = k;
+			fields = f;
+		}
+	}
+
+	/**
+	 * Reads the rows of one run file in order
+	 */
+	private class RunReader
+	{
+		private DataInputStream in;
+		private int index; //Position of the run in the input
+		private SortRow row; //Current row of the run
+
+		public RunReader(File run, int i) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER));
+			index = i;
+		}
+
+		/**
+		 * Reads the next row of the run
+		 * @return false when the run is exhausted
+		 */
+		public boolean advance() throws IOException
+		{
+			long key;
+			try
+			{
+				key = in.readLong();
+			}
+			catch (EOFException e)
+			{
+				close();
+				return false;
+			}
+			char f[][] = new char[fieldLengths.length][];
+			for (int i = 0; i < f.length; i++)
+			{
+				f[i] = new char[fieldLengths[i]];
+				for (int j = 0; j < f[i].length; j++)
+				{
+					f[i][j] = in.readChar();
+				}
+			}
+			row = new SortRow(key, f);
+			return true;
+		}
+
+		public void close()
+		{
+			try
+			{
+				in.close();
+			}
+			catch (IOException e)
+			{
+
+			}
+		}
+	}
+}
\ No newline at end of file
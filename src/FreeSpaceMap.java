@@ -0,0 +1,141 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.BitSet;
+
+/**
+ * The free slots of a file of fixed size slots, such as the blocks of a .tree file or the
+ * rows of a .table file, kept as a bitmap of slot numbers. In the file the free slots are
+ * linked in address order starting from the head stored in the header, which is what the
+ * map is rebuilt from when the file is opened.
+ *
+ * Slots are handed out lowest address first, so the file stays dense at the front and
+ * free slots gather at the end where they can be cut off.
+ */
+class FreeSpaceMap
+{
+
+	private long start; //Address of slot 0
+	private int slotSize;
+	private BitSet slots = new BitSet(); //Set for each free slot
+	private int count;
+
+	public FreeSpaceMap(long first, int size)
+	{
+		start = first;
+		slotSize = size;
+	}
+
+	/**
+	 * @return The lowest free address, 0 if no slot is free
+	 */
+	public long first()
+	{
+		return address(slots.nextSetBit(0));
+	}
+
+	/**
+	 * @return The highest free address below addr, 0 if there is none
+	 */
+	public long before(long addr)
+	{
+		int slot = slot(addr);
+		return slot == 0 ? 0 : address(slots.previousSetBit(slot - 1));
+	}
+
+	/**
+	 * @return The lowest free address above addr, 0 if there is none
+	 */
+	public long after(long addr)
+	{
+		return address(slots.nextSetBit(slot(addr) + 1));
+	}
+
+	public boolean contains(long addr)
+	{
+		return slots.get(slot(addr));
+	}
+
+	public void add(long addr)
+	{
+		int slot = slot(addr);
+		if (!slots.get(slot))
+		{
+			slots.set(slot);
+			count++;
+		}
+	}
+
+	public void remove(long addr)
+	{
+		int slot = slot(addr);
+		if (slots.get(slot))
+		{
+			slots.clear(slot);
+			count--;
+		}
+	}
+
+	/**
+	 * @return The number of free slots
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return The bytes taken by free slots
+	 */
+	public long bytes()
+	{
+		return (long) count * slotSize;
+	}
+
+	/**
+	 * @param length The length of the file
+	 * @return The address of the first whole slot at or after length
+	 */
+	public long end(long length)
+	{
+		if (length <= start)
+			return start;
+		return start + (length - start + slotSize - 1) / slotSize * slotSize;
+	}
+
+	/**
+	 * @param length The length of the file
+	 * @return The address from which every slot up to length is free, end(length) if the
+	 * last slot is in use
+	 */
+	public long tail(long length)
+	{
+		int last = slot(end(length)); //One past the last slot
+		int used = slots.previousClearBit(last - 1);
+		return address(used + 1);
+	}
+
+	/**
+	 * Forgets every free slot at or after addr
+	 */
+	public void cut(long addr)
+	{
+		int slot = slot(addr);
+		int from = slots.nextSetBit(slot);
+		if (from >= 0)
+		{
+			count -= slots.get(from, slots.length()).cardinality();
+			slots.clear(from, slots.length());
+		}
+	}
+
+	private int slot(long addr)
+	{
+		return (int) ((addr - start) / slotSize);
+	}
+
+	private long address(int slot)
+	{
+		return slot < 0 ? 0 : start + (long) slot * slotSize;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,176 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.Arrays;
+
+/**
+ * The columns of a DBTable key, such as (tenant, timestamp). Each column is a signed
+ * integer of some number of bits, at most 64 bits in all. The columns are packed into one
+ * long key that sorts the same as comparing the columns in order, so a range of keys covers
+ * every row that shares a prefix of columns. Keys of 32 bits or less are stored in int key
+ * BTrees, longer keys in long key BTrees.
+ */
+public class KeySchema
+{
+
+	public static final KeySchema INT = new KeySchema(32); //A single int column, the default
+	public static final KeySchema LONG = new KeySchema(64); //A single long column
+
+	private int widths[]; //Bits in each column
+	private int bits; //Bits in the packed key
+
+	/**
+	 * @param columnBits The number of bits in each column, in sort order
+	 * @throws IllegalArgumentException if there are no columns, a column has less than one
+	 * bit or the columns add up to more than 64 bits
+	 */
+	public KeySchema(int... columnBits)
+	{
+		if (columnBits.length == 0)
+		{
+			throw new IllegalArgumentException("A key needs at least one column");
+		}
+		widths = columnBits.clone();
+		for (int w : widths)
+		{
+			if (w < 1 || w > 64 - bits)
+			{
+				throw new IllegalArgumentException("Key columns must have 1 to 64 bits in all");
+			}
+			bits += w;
+		}
+	}
+
+	/**
+	 * @return The number of columns
+	 */
+	public int columns()
+	{
+		return widths.length;
+	}
+
+	/**
+	 * @return The number of bits in column i
+	 */
+	public int width(int i)
+	{
+		return widths[i];
+	}
+
+	/**
+	 * @return The number of bytes a key is stored in, 4 or 8
+	 */
+	public int keySize()
+	{
+		return bits <= 32 ? 4 : 8;
+	}
+
+	/**
+	 * Packs the columns of a key
+	 * @param values The value of each column
+	 * @return The key
+	 * @throws IllegalArgumentException if the number of values does not match the columns
+	 * or a value does not fit in its column
+	 */
+	public long key(long... values)
+	{
+		if (values.length != widths.length)
+		{
+			throw new IllegalArgumentException("Expected " + widths.length + " key columns");
+		}
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] < min(i) || values[i] > max(i))
+			{
+				throw new IllegalArgumentException("Key column " + i + " does not fit in " + widths[i] + " bits");
+			}
+		}
+		//The first column keeps its sign, later columns are offset by their minimum so
+		//they sort as unsigned bits below it
+		long key = values[0];
+		for (int i = 1; i < values.length; i++)
+		{
+			key = (key << widths[i]) | ((values[i] - min(i)) & mask(widths[i]));
+		}
+		return key;
+	}
+
+	/**
+	 * @param prefix The values of the first columns
+	 * @return The smallest key that starts with prefix
+	 */
+	public long low(long... prefix)
+	{
+		long values[] = Arrays.copyOf(prefix, widths.length);
+		for (int i = prefix.length; i < widths.length; i++)
+		{
+			values[i] = min(i);
+		}
+		return key(values);
+	}
+
+	/**
+	 * @param prefix The values of the first columns
+	 * @return The largest key that starts with prefix
+	 */
+	public long high(long... prefix)
+	{
+		long values[] = Arrays.copyOf(prefix, widths.length);
+		for (int i = prefix.length; i < widths.length; i++)
+		{
+			values[i] = max(i);
+		}
+		return key(values);
+	}
+
+	/**
+	 * Unpacks one column of a key
+	 * @param key A key packed by this schema
+	 * @param i The column
+	 * @return The value of column i
+	 */
+	public long column(long key, int i)
+	{
+		int shift = 0; //Bits of the columns after i
+		for (int j = i + 1; j < widths.length; j++)
+		{
+			shift += widths[j];
+		}
+		if (i == 0) //The first column carries the sign of the key
+		{
+			return key >> shift;
+		}
+		return ((key >>> shift) & mask(widths[i])) + min(i);
+	}
+
+	/**
+	 * @return true if key is a key this schema can pack
+	 */
+	public boolean contains(long key)
+	{
+		return bits == 64 || (key >> (bits - 1)) == (key >> 63);
+	}
+
+	/**
+	 * @return true if this is the single int column of tables written before key schemas
+	 */
+	boolean isDefault()
+	{
+		return widths.length == 1 && widths[0] == 32;
+	}
+
+	private long min(int i)
+	{
+		return -1L << (widths[i] - 1);
+	}
+
+	private long max(int i)
+	{
+		return ~min(i);
+	}
+
+	private static long mask(int w)
+	{
+		return w == 64 ? -1L : (1L << w) - 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write latches on BTreeNodes, keyed by node address. A latch only exists while
+ * some thread holds or waits for it. Released latches are pooled, so latching a node
+ * does not allocate.
+ */
+class LatchTable
+{
+
+	private LongMap<Latch> latches = new LongMap<Latch>();
+	private Latch pool; //Released latches, linked through nextFree
+
+	public void lockRead(long addr)
+	{
+		acquire(addr).readLock().lock();
+	}
+
+	public void unlockRead(long addr)
+	{
+		Latch l = get(addr);
+		l.readLock().unlock();
+		release(addr, l);
+	}
+
+	public void lockWrite(long addr)
+	{
+		acquire(addr).writeLock().lock();
+	}
+
+	public void unlockWrite(long addr)
+	{
+		Latch l = get(addr);
+		l.writeLock().unlock();
+		release(addr, l);
+	}
+
+	private synchronized Latch acquire(long addr)
+	{
+		Latch l = latches.get(addr);
+		if (l == null)
+		{
+			if (pool != null)
+			{
+				l = pool;
+				pool = l.nextFree;
+				l.nextFree = null;
+			}
+			else
+			{
+				l = new Latch();
+			}
+			latches.put(addr, l);
+		}
+		l.users++;
+		return l;
+	}
+
+	private synchronized Latch get(long addr)
+	{
+		return latches.get(addr);
+	}
+
+	private synchronized void release(long addr, Latch l)
+	{
+		l.users--;
+		if (l.users == 0)
+		{
+			latches.remove(addr);
+			l.nextFree = pool;
+			pool = l;
+		}
+	}
+
+	private static class Latch extends ReentrantReadWriteLock
+	{
+		private static final long serialVersionUID = 1L;
+		private int users; //Threads holding or waiting for the latch
+		private Latch nextFree; //Next latch in the pool
+	}
+}
\ No newline at end of file
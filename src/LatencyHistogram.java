@@ -0,0 +1,105 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of operation latencies in nanoseconds. Each power of two is split into four
+ * buckets, so a percentile is within 25% of the true latency. Every bucket is a striped
+ * counter, so threads recording at once do not contend and recording never allocates.
+ */
+class LatencyHistogram
+{
+
+	private static final int SUB_BITS = 2; //Buckets per power of two is 1 << SUB_BITS
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private LongAdder counts[] = new LongAdder[BUCKETS];
+	private LongAdder total = new LongAdder(); //Sum of the recorded latencies
+	private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public LatencyHistogram()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos The latency of one operation
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		counts[bucket(nanos)].increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * @return The latencies recorded so far. Operations recorded while the summary is taken
+	 * may be left out.
+	 */
+	public LatencySummary summary()
+	{
+		long snapshot[] = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts[i].sum();
+			count += snapshot[i];
+		}
+		long most = max.get();
+		return new LatencySummary(count, count == 0 ? 0 : total.sum() / count,
+				percentile(snapshot, count, 0.5, most), percentile(snapshot, count, 0.99, most),
+				percentile(snapshot, count, 0.999, most), most);
+	}
+
+	/**
+	 * @return The highest latency of the bucket holding the pth fraction of the operations,
+	 * at most the highest latency recorded
+	 */
+	private static long percentile(long snapshot[], long count, double p, long most)
+	{
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highest(i), most);
+		}
+		return most;
+	}
+
+	/**
+	 * @return The bucket of a latency, the power of two it is in and its next SUB_BITS bits
+	 */
+	private static int bucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The highest latency that falls in bucket i
+	 */
+	private static long highest(int i)
+	{
+		if (i < SUB_BUCKETS)
+			return i;
+		int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+		int shift = exponent - SUB_BITS;
+		long lowest = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+/**
+ * @author Lucas Rappette
+ */
+
+/**
+ * The latencies of one kind of operation, as published by BTreeMXBean and DBTableMXBean.
+ * Percentiles are rounded up to the bucket they fall in, within 25% of the true latency.
+ */
+public class LatencySummary
+{
+
+	private long count;
+	private long mean; //Nanoseconds
+	private long p50;
+	private long p99;
+	private long p999;
+	private long max;
+
+	LatencySummary(long c, long mn, long p5, long p9, long p99s, long mx)
+	{
+		count = c;
+		mean = mn;
+		p50 = p5;
+		p99 = p9;
+		p999 = p99s;
+		max = mx;
+	}
+
+	/**
+	 * @return The number of operations
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	public double getMeanMicros()
+	{
+		return mean / 1000.0;
+	}
+
+	public double getP50Micros()
+	{
+		return p50 / 1000.0;
+	}
+
+	public double getP99Micros()
+	{
+		return p99 / 1000.0;
+	}
+
+	public double getP999Micros()
+	{
+		return p999 / 1000.0;
+	}
+
+	public double getMaxMicros()
+	{
+		return max / 1000.0;
+	}
+
+	public String toString()
+	{
+		return count + " ops mean " + getMeanMicros() + " p50 " + getP50Micros() + " p99 " + getP99Micros()
+				+ " p99.9 " + getP999Micros() + " max " + getMaxMicros() + " us";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to values that does not box its keys. Uses open addressing
+ * with linear probing, so lookups, puts of keys already present and removes never allocate.
+ * @param <V> The type of the values, null values are not allowed
+ */
+class LongMap<V>
+{
+
+	private long keys[];
+	private Object values[]; //null marks an empty slot, every long is a valid key
+	private int size;
+
+	public LongMap()
+	{
+		keys = new long[64];
+		values = new Object[64];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		return (V) values[slot(key)];
+	}
+
+	public void put(long key, V value)
+	{
+		int i = slot(key);
+		if (values[i] == null)
+		{
+			keys[i] = key;
+			size++;
+		}
+		values[i] = value;
+		if (size * 2 > values.length)
+		{
+			grow();
+		}
+	}
+
+	/**
+	 * Removes key and moves later entries of its probe run back so no lookup stops early
+	 * @return The value that was mapped to key, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key)
+	{
+		int i = slot(key);
+		V old = (V) values[i];
+		if (old == null)
+		{
+			return null;
+		}
+		int mask = values.length - 1;
+		values[i] = null;
+		size--;
+		int j = (i + 1) & mask;
+		while (values[j] != null)
+		{
+			int home = hash(keys[j]) & mask;
+			//Move the entry at j into the hole at i unless its home lies cyclically in (i, j]
+			if (((j - home) & mask) >= ((j - i) & mask))
+			{
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+			j = (j + 1) & mask;
+		}
+		return old;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return The slot holding key, or the empty slot where it would go
+	 */
+	private int slot(long key)
+	{
+		int mask = values.length - 1;
+		int i = hash(key) & mask;
+		while (values[i] != null && keys[i] != key)
+		{
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void grow()
+	{
+		long oldKeys[] = keys;
+		Object oldValues[] = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		for (int i = 0; i < oldValues.length; i++)
+		{
+			if (oldValues[i] != null)
+			{
+				int j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
\ No newline at end of file
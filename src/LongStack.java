@@ -0,0 +1,77 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.util.Arrays;
+
+/**
+ * Growable stack of longs that does not box its values. Clearing keeps the array,
+ * so a stack reused across operations stops allocating once it has grown.
+ */
+class LongStack
+{
+
+	private long values[] = new long[16];
+	private int size;
+
+	public void push(long v)
+	{
+		if (size == values.length)
+		{
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = v;
+	}
+
+	public long pop()
+	{
+		return values[--size];
+	}
+
+	public long get(int i)
+	{
+		return values[i];
+	}
+
+	public boolean contains(long v)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (values[i] == v)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the first occurrence of v
+	 * @return true if v was in the stack
+	 */
+	public boolean remove(long v)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (values[i] == v)
+			{
+				System.arraycopy(values, i + 1, values, i, size - i - 1);
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean empty()
+	{
+		return size == 0;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Memory maps the blocks of a file. The file is mapped in segments of whole blocks,
+ * a new segment is mapped each time the file grows past the mapped region. Reads take no
+ * lock, only mapping a new segment does.
+ */
+class MappedBlockStore implements BlockStore
+{
+
+	private static final int SEGMENT_BYTES = 1 << 20; //Target size of each mapped segment
+
+	private FileChannel f;
+	private long start; //Address of the first block, blocks are laid out contiguously after it
+	private int blockSize;
+	private int blocksPerSegment;
+	private long length; //Length of the file without the unused tail of the last segment
+	private volatile Segment segments[]; //Replaced, never changed, when a segment is mapped
+
+	public MappedBlockStore(FileChannel file, long firstBlock, int bsize) throws IOException
+	{
+		f = file;
+		start = firstBlock;
+		blockSize = bsize;
+		blocksPerSegment = Math.max(1, SEGMENT_BYTES / blockSize);
+		length = Math.max(f.size(), start);
+		segments = new Segment[0];
+	}
+
+	/**
+	 * Returns a read only view of the mapped block. The view is made on the first read of
+	 * the block and handed out on every read after, a block never moves within its segment.
+	 */
+	public ByteBuffer read(long addr) throws IOException
+	{
+		Segment segment = segmentFor(addr);
+		int index = (int) ((addr - start) / blockSize % blocksPerSegment);
+		ByteBuffer view = segment.views.get(index);
+		if (view == null)
+		{
+			//Readers that race here make equal views, whichever is kept does not matter
+			ByteBuffer block = segment.buffer.duplicate();
+			int offset = offsetFor(addr);
+			block.position(offset);
+			block.limit(offset + blockSize);
+			view = block.slice().asReadOnlyBuffer();
+			segment.views.set(index, view);
+		}
+		return view;
+	}
+
+	public synchronized void write(long addr, byte[] data) throws IOException
+	{
+		//The caller latches the block so no one reads it while it changes
+		ByteBuffer block = segmentFor(addr).buffer.duplicate();
+		block.position(offsetFor(addr));
+		block.put(data, 0, blockSize);
+		length = Math.max(length, addr + blockSize);
+	}
+
+	public synchronized long length()
+	{
+		return length;
+	}
+
+	/**
+	 * The mapped segments keep their size, the file is cut to length when the store is closed.
+	 */
+	public synchronized void truncate(long len)
+	{
+		length = Math.max(len, start);
+	}
+
+	public synchronized void flush() throws IOException
+	{
+		for (Segment segment : segments)
+		{
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Forces the mapped segments and cuts the unused tail of the last segment off the file.
+	 */
+	public synchronized void close() throws IOException
+	{
+		flush();
+		segments = new Segment[0];
+		if (f.size() > length)
+		{
+			f.truncate(length);
+		}
+	}
+
+	/**
+	 * Returns the segment holding addr, mapping new segments if the file has grown.
+	 * @param addr The address of a block
+	 * @return The mapped segment
+	 */
+	private Segment segmentFor(long addr) throws IOException
+	{
+		int index = (int) ((addr - start) / blockSize / blocksPerSegment);
+		Segment mapped[] = segments;
+		if (index < mapped.length)
+		{
+			return mapped[index];
+		}
+		return map(index);
+	}
+
+	/**
+	 * Maps segments up to and including index, unless another thread already has, and
+	 * publishes them in a new array.
+	 * @param index The index of the segment
+	 * @return The mapped segment
+	 */
+	private synchronized Segment map(int index) throws IOException
+	{
+		Segment mapped[] = segments;
+		if (index >= mapped.length)
+		{
+			long segmentBytes = (long) blocksPerSegment * blockSize;
+			int count = mapped.length;
+			mapped = Arrays.copyOf(mapped, index + 1);
+			for (int i = count; i <= index; i++)
+			{
+				mapped[i] = new Segment(f.map(FileChannel.MapMode.READ_WRITE, start + i * segmentBytes, segmentBytes));
+			}
+			segments = mapped;
+		}
+		return mapped[index];
+	}
+
+	private int offsetFor(long addr)
+	{
+		return (int) (((addr - start) / blockSize % blocksPerSegment) * blockSize);
+	}
+
+	/**
+	 * A mapped segment and the read only views of its blocks made so far
+	 */
+	private class Segment
+	{
+		private MappedByteBuffer buffer;
+		private AtomicReferenceArray<ByteBuffer> views = new AtomicReferenceArray<ByteBuffer>(blocksPerSegment);
+
+		private Segment(MappedByteBuffer b)
+		{
+			buffer = b;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms of the operations of one open BTree or DBTable file, its JMX
+ * registration, and the JFR events of its slow operations. An operation is timed with
+ * start and end, which cost two reads of the clock and a few uncontended adds.
+ *
+ * Setting the system property btree.jmx to false keeps files from registering MBeans.
+ */
+class Metrics
+{
+
+	public static final int INSERT = 0;
+	public static final int SEARCH = 1;
+	public static final int REMOVE = 2;
+	public static final int RANGE_SEARCH = 3;
+	public static final int SEARCH_MANY = 4;
+	private static final String OPERATIONS[] = {"insert", "search", "remove", "rangeSearch", "searchMany"};
+	private static final long DEFAULT_SLOW_NANOS = 10000000; //10 ms
+	private static final String DOMAIN = "rappette.btree";
+	private static final boolean JMX = !"false".equals(System.getProperty("btree.jmx"));
+	private static final boolean JFR = SlowOperationEvent.isAvailable();
+
+	private String file;
+	private LatencyHistogram latencies[] = new LatencyHistogram[OPERATIONS.length];
+	private volatile long slowNanos = DEFAULT_SLOW_NANOS;
+	private ObjectName registered; //null unless the MBean of the file is registered
+
+	/**
+	 * @param filename The file whose operations are measured, with its extension
+	 */
+	public Metrics(String filename)
+	{
+		file = filename;
+		for (int i = 0; i < latencies.length; i++)
+		{
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return The start time of an operation, to pass to end
+	 */
+	public long start()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the latency of an operation, and a JFR event if it was slow
+	 * @param op INSERT, SEARCH, REMOVE, RANGE_SEARCH or SEARCH_MANY
+	 * @param start What start returned when the operation began
+	 * @param key The key of the operation, the low key of a range search, the first key of
+	 * a searchMany
+	 */
+	public void end(int op, long start, long key)
+	{
+		long nanos = System.nanoTime() - start;
+		latencies[op].record(nanos);
+		if (nanos >= slowNanos && JFR)
+		{
+			SlowOperationEvent.emit(file, OPERATIONS[op], key, nanos);
+		}
+	}
+
+	public LatencySummary latency(int op)
+	{
+		return latencies[op].summary();
+	}
+
+	public String getFile()
+	{
+		return file;
+	}
+
+	public long getSlowNanos()
+	{
+		return slowNanos;
+	}
+
+	/**
+	 * @param nanos Operations that take at least this long emit a JFR event
+	 */
+	public void setSlowNanos(long nanos)
+	{
+		slowNanos = nanos;
+	}
+
+	/**
+	 * Registers the MBean of the file with the platform MBean server as
+	 * rappette.btree:type=type,name="file". Does nothing if JMX is turned off or another
+	 * open instance of the file already registered it.
+	 * @param type BTree or DBTable
+	 * @param mbean The MBean of the file
+	 */
+	public void register(String type, Object mbean)
+	{
+		if (!JMX)
+			return;
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(file));
+			if (!server.isRegistered(name))
+			{
+				server.registerMBean(mbean, name);
+				registered = name;
+			}
+		}
+		catch (Exception e)
+		{
+			//Metrics are not worth failing to open the file over
+		}
+	}
+
+	/**
+	 * Unregisters the MBean of the file, if register registered it
+	 */
+	public void unregister()
+	{
+		if (registered == null)
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+		}
+		catch (Exception e)
+		{
+
+		}
+		registered = null;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,371 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed size LRU cache of file blocks. Writes stay in memory until the block is
+ * evicted or the cache is flushed. Safe to use from many threads, a write replaces
+ * the cached array so buffers already handed out by read never change. A cached block
+ * hands out the same buffer on every read. A miss reads the file without holding the lock,
+ * so misses on different blocks overlap and a miss never blocks hits.
+ *
+ * With a WriteAheadLog a block written by the open transaction stays in memory until
+ * the transaction ends, and the log is forced before any block is written back.
+ */
+class PageCache implements BlockStore
+{
+
+	private FileChannel f;
+	private int pageSize;
+	private int capacity;
+	private long length; //Length of the file including blocks not yet written back
+	private LongMap<Page> pages;
+	private LongMap<Load> loads = new LongMap<Load>(); //Blocks being read from the file after a miss
+	private long truncations; //Bumped by truncate, a load that spans one reads again
+	private Page eldest; //Least recently used end of the list of cached pages
+	private Page newest;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private WriteAheadLog log; //null when writes are not logged
+
+	public PageCache(FileChannel file, int psize, int cap) throws IOException
+	{
+		f = file;
+		pageSize = psize;
+		capacity = cap;
+		length = f.size();
+		pages = new LongMap<Page>();
+	}
+
+	public ByteBuffer read(long addr) throws IOException
+	{
+		while (true)
+		{
+			Load load;
+			long truncated;
+			synchronized (this)
+			{
+				Page p = pages.get(addr);
+				if (p != null)
+				{
+					hits++;
+					touch(p);
+					return p.buffer;
+				}
+				misses++;
+				load = loads.get(addr);
+				if (load == null)
+				{
+					load = new Load();
+					loads.put(addr, load);
+				}
+				load.readers++;
+				truncated = truncations;
+			}
+			byte[] data = new byte[pageSize];
+			try
+			{
+				readBlock(addr, data);
+			}
+			catch (IOException e)
+			{
+				synchronized (this)
+				{
+					release(addr, load);
+				}
+				throw e;
+			}
+			synchronized (this)
+			{
+				release(addr, load);
+				Page p = pages.get(addr);
+				if (p != null) //Another miss or a write cached the block meanwhile
+				{
+					touch(p);
+					return p.buffer;
+				}
+				if (!load.changed && truncated == truncations)
+				{
+					p = new Page(addr, data, false);
+					if (capacity > 0)
+					{
+						add(p);
+						evict();
+					}
+					return p.buffer;
+				}
+			}
+			//The block was written while it was read, the file may have had either version
+		}
+	}
+
+	public synchronized void write(long addr, byte[] data) throws IOException
+	{
+		length = Math.max(length, addr + pageSize);
+		Load load = loads.remove(addr);
+		if (load != null)
+			load.changed = true;
+		if (capacity == 0 && log == null) //Write through when caching is disabled
+		{
+			writeBlock(addr, data);
+			return;
+		}
+		long txn = log == null ? -1 : log.openTransaction();
+		Page p = pages.get(addr);
+		if (p != null)
+		{
+			p.data = data;
+			p.buffer = ByteBuffer.wrap(data);
+			p.dirty = true;
+			p.txn = txn;
+			touch(p);
+		}
+		else
+		{
+			p = new Page(addr, data, true);
+			p.txn = txn;
+			add(p);
+			evict();
+		}
+	}
+
+	public synchronized long length()
+	{
+		return length;
+	}
+
+	public synchronized void truncate(long len) throws IOException
+	{
+		truncations++;
+		Page p = eldest;
+		while (p != null)
+		{
+			Page newer = p.newer;
+			if (p.addr >= len)
+			{
+				pages.remove(p.addr);
+				unlink(p);
+			}
+			p = newer;
+		}
+		length = len;
+		if (f.size() > len)
+		{
+			f.truncate(len);
+		}
+	}
+
+	/**
+	 * Writes every dirty block back to the file. Blocks stay cached.
+	 * Blocks of the open transaction, if any, are not written.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		for (Page p = eldest; p != null; p = p.newer)
+		{
+			if (!pinned(p))
+				writeBack(p);
+		}
+	}
+
+	public synchronized void close() throws IOException
+	{
+		flush();
+		pages.clear();
+		eldest = null;
+		newest = null;
+	}
+
+	/**
+	 * Changes the number of blocks held in memory, evicting blocks if needed.
+	 * @param cap The new capacity in blocks, 0 disables caching
+	 */
+	public synchronized void setCapacity(int cap) throws IOException
+	{
+		capacity = cap;
+		evict();
+	}
+
+	/**
+	 * Sets the log that must be forced before blocks are written back
+	 * @param l The log, null to stop logging
+	 */
+	public synchronized void setLog(WriteAheadLog l) throws IOException
+	{
+		log = l;
+		evict();
+	}
+
+	public synchronized int getCapacity()
+	{
+		return capacity;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * Drops a reader of a load, and the load once it has no readers left
+	 */
+	private void release(long addr, Load load)
+	{
+		load.readers--;
+		if (load.readers == 0 && loads.get(addr) == load)
+			loads.remove(addr);
+	}
+
+	/**
+	 * Evicts least recently used blocks until the cache fits its capacity.
+	 * Blocks of the open transaction are skipped, the cache may grow past its capacity until it ends.
+	 */
+	private void evict() throws IOException
+	{
+		Page p = eldest;
+		while (pages.size() > capacity && p != null)
+		{
+			Page newer = p.newer;
+			if (!pinned(p))
+			{
+				writeBack(p);
+				pages.remove(p.addr);
+				unlink(p);
+				evictions++;
+			}
+			p = newer;
+		}
+	}
+
+	/**
+	 * Adds a page at the most recently used end of the list
+	 */
+	private void add(Page p)
+	{
+		pages.put(p.addr, p);
+		p.older = newest;
+		if (newest != null)
+			newest.newer = p;
+		else
+			eldest = p;
+		newest = p;
+	}
+
+	/**
+	 * Moves a cached page to the most recently used end of the list
+	 */
+	private void touch(Page p)
+	{
+		if (p != newest)
+		{
+			unlink(p);
+			p.older = newest;
+			newest.newer = p;
+			newest = p;
+		}
+	}
+
+	private void unlink(Page p)
+	{
+		if (p.older != null)
+			p.older.newer = p.newer;
+		else
+			eldest = p.newer;
+		if (p.newer != null)
+			p.newer.older = p.older;
+		else
+			newest = p.older;
+		p.older = null;
+		p.newer = null;
+	}
+
+	/**
+	 * @return true if the block was written by the open transaction and must stay in memory
+	 */
+	private boolean pinned(Page p)
+	{
+		return log != null && p.txn >= 0 && p.txn == log.openTransaction();
+	}
+
+	private void writeBack(Page p) throws IOException
+	{
+		if (p.dirty)
+		{
+			if (log != null && p.txn >= 0)
+			{
+				log.force(p.txn); //The block may only reach the file once its transaction is durable
+			}
+			writeBlock(p.addr, p.data);
+			p.dirty = false;
+		}
+	}
+	
+	/**
+	 * Reads a whole block with positional reads. Bytes past the end of the file are left zeroed.
+	 */
+	private void readBlock(long addr, byte[] data) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining())
+		{
+			if (f.read(buf, addr + buf.position()) < 0)
+				break;
+		}
+	}
+	
+	/**
+	 * Writes a whole block with positional writes.
+	 */
+	private void writeBlock(long addr, byte[] data) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining())
+		{
+			f.write(buf, addr + buf.position());
+		}
+	}
+
+	/**
+	 * Reads of a block from the file after misses on it, so a write of the block can tell
+	 * them to read again
+	 */
+	private static class Load
+	{
+		private int readers;
+		private boolean changed; //The block was written since the read began
+	}
+
+	private class Page
+	{
+		private long addr;
+		private byte data[];
+		private ByteBuffer buffer; //Handed out by read, wraps data
+		private boolean dirty;
+		private long txn; //Transaction that last wrote the block, -1 if none
+		private Page older; //Neighbours in the LRU list
+		private Page newer;
+
+		public Page(long a, byte[] d, boolean dirt)
+		{
+			addr = a;
+			data = d;
+			buffer = ByteBuffer.wrap(d);
+			dirty = dirt;
+			txn = -1;
+		}
+	}
+}
\ No newline at end of file
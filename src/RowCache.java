@@ -0,0 +1,210 @@
+/**
+ * @author Lucas Rappette
+ */
+
+/**
+ * LRU cache of decoded DBTable rows keyed by row address, bounded by an estimate of the
+ * bytes the cached rows take in memory. Safe to use from many threads. Each row is cached
+ * with its key, so a reader holding an address the row was freed from and reused by
+ * another key does not get the other key's row.
+ *
+ * Every write to a row invalidates it. A reader that missed takes a stamp before it reads
+ * the row from the file and only caches what it read if no row was invalidated since, so
+ * a row read before a write never lands in the cache after it.
+ */
+class RowCache
+{
+
+	private static final int ENTRY_OVERHEAD = 96; //Estimated bytes of an entry besides its strings
+	private static final int STRING_OVERHEAD = 48; //Estimated bytes of a String besides its characters
+
+	private long capacity; //Bytes
+	private long size; //Estimated bytes of the cached rows
+	private LongMap<Entry> entries = new LongMap<Entry>();
+	private Entry eldest; //Least recently used end of the list of cached rows
+	private Entry newest;
+	private long invalidations; //Bumped by every invalidate, the stamp readers compare
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public RowCache(long cap)
+	{
+		capacity = cap;
+	}
+
+	/**
+	 * @return The fields of the cached row at addr, null if it is not cached or is the row
+	 * of another key
+	 */
+	public synchronized String[] get(long addr, long key)
+	{
+		Entry e = entries.get(addr);
+		if (e == null || e.key != key)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		touch(e);
+		return e.fields;
+	}
+
+	/**
+	 * Takes a stamp to pass to put. The caller takes it in the same critical section as
+	 * the read of the row.
+	 */
+	public synchronized long stamp()
+	{
+		return invalidations;
+	}
+
+	/**
+	 * Caches the fields of a row unless a row was invalidated since stamp was taken
+	 * @param addr The address of the row
+	 * @param key The key of the row
+	 * @param fields The fields of the row
+	 * @param stamp The value of stamp() when the row was read
+	 */
+	public synchronized void put(long addr, long key, String[] fields, long stamp)
+	{
+		if (stamp != invalidations || capacity == 0 || entries.get(addr) != null)
+			return;
+		Entry e = new Entry(addr, key, fields);
+		if (e.bytes > capacity)
+			return;
+		add(e);
+		evict();
+	}
+
+	/**
+	 * Drops the row at addr. Called under the same lock as the write that changes it.
+	 */
+	public synchronized void invalidate(long addr)
+	{
+		invalidations++;
+		Entry e = entries.remove(addr);
+		if (e != null)
+		{
+			unlink(e);
+			size -= e.bytes;
+		}
+	}
+
+	/**
+	 * Drops every row
+	 */
+	public synchronized void clear()
+	{
+		invalidations++;
+		entries.clear();
+		eldest = null;
+		newest = null;
+		size = 0;
+	}
+
+	/**
+	 * Changes the number of bytes of rows held in memory, evicting rows if needed.
+	 * @param cap The new capacity in bytes, 0 disables caching
+	 */
+	public synchronized void setCapacity(long cap)
+	{
+		capacity = cap;
+		evict();
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * Evicts least recently used rows until the cache fits its capacity
+	 */
+	private void evict()
+	{
+		while (size > capacity && eldest != null)
+		{
+			Entry e = eldest;
+			entries.remove(e.addr);
+			unlink(e);
+			size -= e.bytes;
+			evictions++;
+		}
+	}
+
+	/**
+	 * Adds an entry at the most recently used end of the list
+	 */
+	private void add(Entry e)
+	{
+		entries.put(e.addr, e);
+		size += e.bytes;
+		e.older = newest;
+		if (newest != null)
+			newest.newer = e;
+		else
+			eldest = e;
+		newest = e;
+	}
+
+	/**
+	 * Moves a cached entry to the most recently used end of the list
+	 */
+	private void touch(Entry e)
+	{
+		if (e != newest)
+		{
+			unlink(e);
+			e.older = newest;
+			newest.newer = e;
+			newest = e;
+		}
+	}
+
+	private void unlink(Entry e)
+	{
+		if (e.older != null)
+			e.older.newer = e.newer;
+		else
+			eldest = e.newer;
+		if (e.newer != null)
+			e.newer.older = e.older;
+		else
+			newest = e.older;
+		e.older = null;
+		e.newer = null;
+	}
+
+	private static class Entry
+	{
+		private long addr;
+		private long key;
+		private String fields[];
+		private long bytes; //Estimated size in memory
+		private Entry older; //Neighbours in the LRU list
+		private Entry newer;
+
+		public Entry(long a, long k, String[] f)
+		{
+			addr = a;
+			key = k;
+			fields = f;
+			bytes = ENTRY_OVERHEAD;
+			for (String s : f)
+			{
+				bytes += STRING_OVERHEAD + 2 * s.length();
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,105 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JFR event for a BTree or DBTable operation that took longer than the slow operation
+ * threshold of its file. The event type is built through jdk.jfr.EventFactory when the class
+ * loads, so the sources still compile for Java 8, and emit does nothing on a JVM without JFR.
+ */
+class SlowOperationEvent
+{
+
+	private static final Object FACTORY; //jdk.jfr.EventFactory, null without JFR
+	private static Method newEvent;
+	private static Method isEnabled;
+	private static Method set;
+	private static Method commit;
+
+	static
+	{
+		Object factory = null;
+		try
+		{
+			Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+			Constructor<?> field = descriptor.getConstructor(Class.class, String.class, List.class);
+
+			List<Object> type = new ArrayList<Object>();
+			type.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), "rappette.btree.SlowOperation"));
+			type.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Slow Operation"));
+			type.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"BTree"}));
+			type.add(annotation.newInstance(Class.forName("jdk.jfr.Description"),
+					"A BTree or DBTable operation slower than the threshold of its file"));
+
+			List<Object> fields = new ArrayList<Object>();
+			fields.add(field.newInstance(String.class, "file", Collections.singletonList(
+					annotation.newInstance(Class.forName("jdk.jfr.Label"), "File"))));
+			fields.add(field.newInstance(String.class, "operation", Collections.singletonList(
+					annotation.newInstance(Class.forName("jdk.jfr.Label"), "Operation"))));
+			List<Object> key = new ArrayList<Object>();
+			key.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Key"));
+			key.add(annotation.newInstance(Class.forName("jdk.jfr.Description"),
+					"The key of the operation, the low key of a range search, the first key of a searchMany"));
+			fields.add(field.newInstance(long.class, "key", key));
+			List<Object> elapsed = new ArrayList<Object>();
+			elapsed.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Elapsed"));
+			elapsed.add(annotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS"));
+			fields.add(field.newInstance(long.class, "elapsed", elapsed));
+
+			factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, type, fields);
+			newEvent = eventFactory.getMethod("newEvent");
+			isEnabled = event.getMethod("isEnabled");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+		}
+		catch (Exception e)
+		{
+			factory = null; //no JFR in this JVM
+		}
+		FACTORY = factory;
+	}
+
+	/**
+	 * @return Whether this JVM has JFR, without which emit does nothing
+	 */
+	static boolean isAvailable()
+	{
+		return FACTORY != null;
+	}
+
+	/**
+	 * Commits an event if JFR is recording it
+	 */
+	static void emit(String file, String operation, long key, long nanos)
+	{
+		if (FACTORY == null)
+		{
+			return;
+		}
+		try
+		{
+			Object event = newEvent.invoke(FACTORY);
+			if ((Boolean) isEnabled.invoke(event))
+			{
+				set.invoke(event, 0, file);
+				set.invoke(event, 1, operation);
+				set.invoke(event, 2, key);
+				set.invoke(event, 3, nanos);
+				commit.invoke(event);
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,324 @@
+/**
+ * @author Lucas Rappette
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log for the .tree, .table and index files of one table, kept in a .wal file next to them.
+ * Each transaction logs the after image of every block, row and header it writes. Nothing a
+ * transaction writes may reach the .tree or .table file before the transaction is durable in
+ * the log. On open, recover replays every complete transaction and empties the log.
+ *
+ * Commits are grouped: a thread waiting for its transaction to be durable either forces the
+ * log itself, covering every transaction appended so far, or waits for the thread that does.
+ */
+class WriteAheadLog
+{
+
+	public static final byte TREE = 0;
+	public static final byte TABLE = 1;
+	private static final int FIRST_INDEX = 2; //File id of the index on the first field
+
+	private RandomAccessFile log;
+	private FileChannel channel;
+	//Log positions count every byte ever appended, so they keep growing across resets
+	private long start; //Position of the first byte in the file
+	private long appended; //Position after the last complete transaction
+	private long durable; //Position up to which the log is forced to disk
+	private boolean forcing; //Whether some thread is forcing the log
+	private int depth; //Nesting of begin calls for the open transaction
+	private long transactions; //Number of transactions ended so far, the id of the open one
+	private long durableTransactions; //Transactions with a lower id are forced to disk
+	private ByteArrayOutputStream txnBytes;
+	private DataOutputStream txn;
+
+	/**
+	 * Opens the log of a table, replaying and emptying it first if it holds anything
+	 * @param filename The name of the table without any extension
+	 * @throws IOException
+	 */
+	public WriteAheadLog(String filename) throws IOException
+	{
+		recover(filename);
+		log = new RandomAccessFile(filename + ".wal", "rw");
+		channel = log.getChannel();
+		txnBytes = new ByteArrayOutputStream();
+		txn = new DataOutputStream(txnBytes);
+	}
+
+	/**
+	 * @param field A field of the table
+	 * @return The file id of the index on field
+	 * @throws IllegalArgumentException if field is too large to have an id
+	 */
+	public static byte index(int field)
+	{
+		if (field < 0 || field > 255 - FIRST_INDEX)
+		{
+			throw new IllegalArgumentException("No file id for an index on field " + field);
+		}
+		return (byte) (FIRST_INDEX + field);
+	}
+
+	/**
+	 * @param filename The name of the table without any extension
+	 * @param file A file id
+	 * @return The name of the file with that id
+	 */
+	public static String fileName(String filename, int file)
+	{
+		if (file == TREE)
+			return filename + ".tree";
+		if (file == TABLE)
+			return filename + ".table";
+		return filename + ".index" + (file - FIRST_INDEX) + ".tree";
+	}
+
+	/**
+	 * Starts a transaction, or joins the open one
+	 */
+	public synchronized void begin()
+	{
+		depth++;
+	}
+
+	/**
+	 * @return true if a transaction is open
+	 */
+	public synchronized boolean inTransaction()
+	{
+		return depth > 0;
+	}
+
+	/**
+	 * @return The id of the open transaction, -1 if none is open
+	 */
+	public synchronized long openTransaction()
+	{
+		return depth > 0 ? transactions : -1;
+	}
+
+	/**
+	 * Adds the after image of a write to the open transaction
+	 * @param file TREE, TABLE or the id of an index
+	 * @param addr The offset of the write in the file
+	 * @param data The bytes written
+	 */
+	public synchronized void add(byte file, long addr, byte[] data)
+	{
+		try
+		{
+			txn.writeByte(file);
+			txn.writeLong(addr);
+			txn.writeInt(data.length);
+			txn.write(data);
+		}
+		catch (IOException e)
+		{
+			//Writing to memory does not fail
+		}
+	}
+
+	/**
+	 * Ends the open transaction. The outermost end appends it to the log without forcing it.
+	 * @return The log position to pass to commit, 0 if there is nothing to wait for
+	 */
+	public synchronized long end() throws IOException
+	{
+		depth--;
+		if (depth > 0)
+		{
+			return 0;
+		}
+		transactions++;
+		if (txnBytes.size() == 0)
+		{
+			return 0;
+		}
+		byte payload[] = txnBytes.toByteArray();
+		txnBytes.reset();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 8);
+		record.putInt(payload.length);
+		record.put(payload);
+		record.putLong(crc.getValue());
+		record.flip();
+		while (record.hasRemaining())
+		{
+			appended += channel.write(record, appended - start);
+		}
+		return appended;
+	}
+
+	/**
+	 * Waits until the log is durable up to lsn
+	 * @param lsn A position returned by end
+	 */
+	public void commit(long lsn) throws IOException
+	{
+		long target;
+		long targetTransactions;
+		synchronized (this)
+		{
+			while (durable < lsn && forcing)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for commit");
+				}
+			}
+			if (durable >= lsn)
+			{
+				return;
+			}
+			forcing = true;
+			target = appended; //Everything appended so far rides along
+			targetTransactions = transactions;
+		}
+		try
+		{
+			channel.force(false);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				forcing = false;
+				durable = Math.max(durable, target);
+				durableTransactions = Math.max(durableTransactions, targetTransactions);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Makes every appended transaction durable
+	 */
+	public void force() throws IOException
+	{
+		long lsn;
+		synchronized (this)
+		{
+			lsn = appended;
+		}
+		commit(lsn);
+	}
+
+	/**
+	 * Makes a transaction durable if it is not already
+	 * @param txn The id of an ended transaction
+	 */
+	public void force(long txn) throws IOException
+	{
+		synchronized (this)
+		{
+			if (txn < durableTransactions)
+				return;
+		}
+		force();
+	}
+
+	/**
+	 * @return The number of bytes in the log file
+	 */
+	public synchronized long size()
+	{
+		return appended - start;
+	}
+
+	/**
+	 * Empties the log. The caller has made every logged write durable in the data files.
+	 */
+	public synchronized void reset() throws IOException
+	{
+		channel.truncate(0);
+		channel.force(true);
+		start = appended;
+		durable = appended;
+		durableTransactions = transactions;
+	}
+
+	public synchronized void close() throws IOException
+	{
+		log.close();
+	}
+
+	/**
+	 * Replays every complete transaction in the log of a table into its .tree, .table and
+	 * index files and empties the log. A torn transaction at the end of the log is dropped.
+	 * @param filename The name of the table without any extension
+	 * @throws IOException
+	 */
+	public static void recover(String filename) throws IOException
+	{
+		File target = new File(filename + ".wal");
+		if (!target.exists() || target.length() == 0)
+		{
+			return;
+		}
+		RandomAccessFile in = new RandomAccessFile(target, "rw");
+		RandomAccessFile files[] = new RandomAccessFile[256];
+		try
+		{
+			long pos = 0;
+			long end = in.length();
+			while (pos + 4 <= end)
+			{
+				in.seek(pos);
+				int length = in.readInt();
+				if (length < 0 || pos + 4 + length + 8 > end)
+					break;
+				byte payload[] = new byte[length];
+				in.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (in.readLong() != crc.getValue())
+					break;
+				ByteBuffer entries = ByteBuffer.wrap(payload);
+				while (entries.hasRemaining())
+				{
+					int file = entries.get() & 0xFF;
+					long addr = entries.getLong();
+					byte data[] = new byte[entries.getInt()];
+					entries.get(data);
+					if (files[file] == null)
+					{
+						files[file] = new RandomAccessFile(fileName(filename, file), "rw");
+					}
+					files[file].seek(addr);
+					files[file].write(data);
+				}
+				pos += 4 + length + 8;
+			}
+			for (RandomAccessFile f : files)
+			{
+				if (f != null)
+					f.getChannel().force(true);
+			}
+			in.getChannel().truncate(0);
+			in.getChannel().force(true);
+		}
+		finally
+		{
+			for (RandomAccessFile f : files)
+			{
+				if (f != null)
+					f.close();
+			}
+			in.close();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,31 @@
+import java.io.*;
+
+/**
+ * Prints what analyze finds in a table or B Tree. A table whose log is not empty is
+ * recovered first, like any open.
+ *
+ * java Analyzer name   - name.table if it exists, otherwise name.tree
+ */
+public class Analyzer {
+
+	public static void main(String args[]) throws IOException {
+		if (args.length != 1) {
+			System.out.println("Usage: java Analyzer name");
+			return;
+		}
+		String name = args[0];
+		if (new File(name + ".table").exists()) {
+			DBTable t = new DBTable(name);
+			System.out.println(t.analyze());
+			t.close();
+		}
+		else if (new File(name + ".tree").exists()) {
+			BTree b = new BTree(name);
+			System.out.println(b.analyze());
+			b.close();
+		}
+		else {
+			System.out.println("No " + name + ".table or " + name + ".tree");
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,110 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Bulk loads of many sizes, checking each node is written once and the leaves are linked.
+ */
+public class BulkLoadTest
+{
+
+	private static final int SIZES[] = {1, 2, 3, 7, 50, 1001, 20000};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void eachNodeIsWrittenOnce()
+	{
+		for (int blockSize : new int[] {60, 132, 4096})
+		{
+			for (double fill : new double[] {0.5, 1.0})
+			{
+				for (int n : SIZES)
+				{
+					BTree tree = new BTree(path(blockSize + "-" + fill + "-" + n), blockSize);
+					load(tree, n, fill);
+					tree.close();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void freedBlocksAreReused()
+	{
+		for (int n : SIZES)
+		{
+			BTree tree = new BTree(path("reuse" + n), 60);
+			for (int k = 0; k < n; k++)
+			{
+				tree.insert(k, k + 1);
+			}
+			for (int k = 0; k < n; k++)
+			{
+				tree.remove(k);
+			}
+			load(tree, n, 1.0);
+			tree.close();
+		}
+	}
+
+	/**
+	 * Loads keys 0 to n - 1 and checks the writes, the blocks and the keys of the tree
+	 */
+	private void load(BTree tree, final int n, double fill)
+	{
+		long before = tree.getNodeWrites();
+		long blocks = tree.analyze().getFileBlocks();
+		assertEquals(n, tree.bulkLoad(new BTree.KeySource()
+		{
+			private int key = -1;
+
+			public boolean next()
+			{
+				return ++key < n;
+			}
+
+			public long key()
+			{
+				return key;
+			}
+
+			public long address()
+			{
+				return key + 1;
+			}
+		}, fill));
+		BTree.Report report = tree.analyze();
+		long nodes = 0;
+		for (int level = 0; level < report.getHeight(); level++)
+		{
+			nodes += report.getNodes(level);
+		}
+		String load = n + " keys, fill " + fill + ", block size " + report.getBlockSize();
+		assertEquals(load, nodes, tree.getNodeWrites() - before);
+		assertEquals(load, 0, report.getLostBlocks());
+		assertEquals(load, Math.max(blocks, nodes), report.getFileBlocks());
+		BTree.Cursor keys = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+		for (int k = 0; k < n; k++)
+		{
+			assertEquals(load, true, keys.next());
+			assertEquals(load, k, keys.key());
+			assertEquals(load, k + 1, keys.address());
+		}
+		assertEquals(load, false, keys.next());
+		keys.close();
+	}
+
+	private String path(String name)
+	{
+		return new File(folder.getRoot(), name).getPath();
+	}
+}
\ No newline at end of file
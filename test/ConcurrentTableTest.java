@@ -0,0 +1,164 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Lookups while a writer removes rows and inserts others into the rows it freed. Every row
+ * holds its own key in its first field, so a lookup that reads a row reused by another key
+ * is caught.
+ */
+public class ConcurrentTableTest
+{
+
+	private static final int KEYS = 2000;
+	private static final int READERS = 4;
+	private static final long MILLIS = 2000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DBTable table;
+	private AtomicBoolean stop = new AtomicBoolean();
+	private AtomicLong wrong = new AtomicLong(); //Rows returned for another key or out of range
+
+	@Before
+	public void setUp()
+	{
+		table = new DBTable(new File(folder.getRoot(), "churn").getPath(), new int[] {10, 6}, 132);
+		for (int k = 0; k < KEYS; k += 2)
+		{
+			table.insert(k, fields(k));
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		table.close();
+	}
+
+	@Test
+	public void searchReturnsOnlyTheRowOfItsKey() throws InterruptedException
+	{
+		run(new Reader()
+		{
+			public void read(Random r)
+			{
+				int k = r.nextInt(KEYS);
+				LinkedList<String> row = table.search(k);
+				if (!row.isEmpty() && keyOf(row) != k)
+					wrong.incrementAndGet();
+			}
+		});
+	}
+
+	@Test
+	public void rangeSearchReturnsOnlyRowsInRange() throws InterruptedException
+	{
+		run(new Reader()
+		{
+			public void read(Random r)
+			{
+				int low = r.nextInt(KEYS);
+				int high = low + 40;
+				for (LinkedList<String> row : table.rangeSearch(low, high))
+				{
+					if (row.isEmpty() || keyOf(row) < low || keyOf(row) > high)
+						wrong.incrementAndGet();
+				}
+			}
+		});
+	}
+
+	@Test
+	public void searchManyReturnsOnlyTheRowsOfItsKeys() throws InterruptedException
+	{
+		run(new Reader()
+		{
+			public void read(Random r)
+			{
+				long keys[] = new long[20];
+				for (int i = 0; i < keys.length; i++)
+					keys[i] = r.nextInt(KEYS);
+				int i = 0;
+				for (LinkedList<String> row : table.searchMany(keys))
+				{
+					if (!row.isEmpty() && keyOf(row) != keys[i])
+						wrong.incrementAndGet();
+					i++;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs readers while the writer churns rows, then checks no reader saw a wrong row
+	 */
+	private void run(final Reader reader) throws InterruptedException
+	{
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(new Thread(new Runnable()
+		{
+			public void run()
+			{
+				Random r = new Random(1);
+				while (!stop.get())
+				{
+					int k = r.nextInt(KEYS);
+					if (!table.remove(k))
+						table.insert(k, fields(k));
+				}
+			}
+		}));
+		for (int i = 0; i < READERS; i++)
+		{
+			final Random r = new Random(10 + i);
+			threads.add(new Thread(new Runnable()
+			{
+				public void run()
+				{
+					while (!stop.get())
+						reader.read(r);
+				}
+			}));
+		}
+		for (Thread t : threads)
+			t.start();
+		Thread.sleep(MILLIS);
+		stop.set(true);
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, wrong.get());
+	}
+
+	private interface Reader
+	{
+		public void read(Random r);
+	}
+
+	private static char[][] fields(long key)
+	{
+		return new char[][] {Arrays.copyOf(Long.toString(key).toCharArray(), 10), new char[6]};
+	}
+
+	private static long keyOf(LinkedList<String> row)
+	{
+		return Long.parseLong(row.getFirst().trim());
+	}
+}
\ No newline at end of file
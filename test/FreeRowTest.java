@@ -0,0 +1,127 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Live rows whose bytes look like the marker older tables put in free rows, in each row
+ * format.
+ */
+public class FreeRowTest
+{
+
+	private static final char MARKER = '\u00fd'; //The emptyChar of tables without the free flag
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void longKeyRowStartingWithMarkerIsLive()
+	{
+		DBTable table = new DBTable(path("long"), KeySchema.LONG, new int[] {5, 4}, 132, DBTable.UTF16);
+		assertLive(table, 5, MARKER + "lan ", "abcd");
+		table.close();
+	}
+
+	@Test
+	public void latin1RowWithMarkerAcrossFieldsIsLive()
+	{
+		//Padding of the first field and the marker starting the second put 0x00 0xFD at byte 8
+		DBTable table = new DBTable(path("latin1"), KeySchema.INT, new int[] {5, 4}, 132, DBTable.LATIN1);
+		assertLive(table, 1, "abcd\0", MARKER + "yz\0");
+		assertLive(table, 2, MARKER + "lan ", MARKER + "yz\0");
+		table.close();
+		table = new DBTable(path("latin1"));
+		assertEquals("abcd ", table.search(1).getFirst());
+		table.close();
+	}
+
+	@Test
+	public void utf8RowWithMarkerIsLive()
+	{
+		DBTable table = new DBTable(path("utf8"), KeySchema.LONG, new int[] {5, 4}, 132, DBTable.UTF8);
+		assertLive(table, 1, "abcd\0", MARKER + "yz\0");
+		assertLive(table, 2, MARKER + "la\0\0", "abcd");
+		assertTrue(table.remove(1));
+		assertLive(table, 3, MARKER + "\0\0\0\0", MARKER + "\0\0\0");
+		table.close();
+		table = new DBTable(path("utf8"));
+		assertEquals(2, table.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		table.close();
+	}
+
+	@Test
+	public void freedRowsAreReusedAndReopened()
+	{
+		DBTable table = new DBTable(path("reuse"), KeySchema.LONG, new int[] {5, 4}, 132, DBTable.UTF16);
+		assertTrue(table.insert(1, fields("one", "a")));
+		assertTrue(table.insert(2, fields("two", "b")));
+		assertTrue(table.remove(1));
+		assertLive(table, 3, MARKER + "lan ", "abcd");
+		assertEquals(new LinkedList<String>(), table.search(1));
+		table.close();
+		table = new DBTable(path("reuse"));
+		assertEquals(MARKER + "lan ", table.search(3).getFirst());
+		assertEquals(2, table.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		table.close();
+	}
+
+	@Test
+	public void compactionAddsTheFreeFlagToOldTables() throws IOException
+	{
+		for (String ext : new String[] {".tree", ".table"})
+		{
+			Files.copy(new File("../testdata/f1" + ext).toPath(), new File(path("f1") + ext).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		DBTable table = new DBTable(path("f1"));
+		int rows = table.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size();
+		table.compact(1.0);
+		assertEquals(rows, table.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		//The third character of the first field is where the old marker is read
+		assertLive(table, 123456789, Arrays.copyOf(("ab" + MARKER).toCharArray(), 15),
+				new char[30]);
+		table.close();
+		table = new DBTable(path("f1"));
+		assertEquals("ab" + MARKER, table.search(123456789).getFirst().trim());
+		table.close();
+	}
+
+	/**
+	 * Inserts a row and checks search finds it
+	 */
+	private void assertLive(DBTable table, long key, String first, String second)
+	{
+		assertLive(table, key, first.toCharArray(), second.toCharArray());
+	}
+
+	private void assertLive(DBTable table, long key, char first[], char second[])
+	{
+		assertTrue(table.insert(key, new char[][] {first, second}));
+		LinkedList<String> row = table.search(key);
+		assertEquals(2, row.size());
+		assertEquals(new String(first).replace('\0', ' '), row.getFirst());
+	}
+
+	private char[][] fields(String first, String second)
+	{
+		return new char[][] {Arrays.copyOf(first.toCharArray(), 5), Arrays.copyOf(second.toCharArray(), 4)};
+	}
+
+	private String path(String name)
+	{
+		return new File(folder.getRoot(), name).getPath();
+	}
+}
\ No newline at end of file
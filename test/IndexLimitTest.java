@@ -0,0 +1,83 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Inserts into an indexed table whose rows would land past the 4 GB an index can address.
+ */
+public class IndexLimitTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String name;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		name = new File(folder.getRoot(), "big").getPath();
+		DBTable table = new DBTable(name, new int[] {4, 4}, 132);
+		assertTrue(table.insert(1, fields("one")));
+		table.createIndex(0);
+		table.close();
+		RandomAccessFile rows = new RandomAccessFile(name + ".table", "rw");
+		rows.setLength(1L << 32); //Sparse, the rows past the first read as zeros
+		rows.close();
+	}
+
+	@Test
+	public void insertPastTheLimitChangesNothing()
+	{
+		DBTable table = new DBTable(name);
+		try
+		{
+			table.insert(2, fields("two"));
+			fail("Expected IllegalStateException");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		assertEquals(new LinkedList<String>(), table.search(2));
+		assertEquals(1, table.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertEquals(1, table.searchBy(0, "one").size());
+		assertEquals(0, table.searchBy(0, "two").size());
+		table.close();
+	}
+
+	@Test
+	public void insertAllPastTheLimitChangesNothing()
+	{
+		DBTable table = new DBTable(name);
+		try
+		{
+			table.insertAll(new long[] {2, 3}, new char[][][] {fields("two"), fields("thre")});
+			fail("Expected IllegalStateException");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		assertEquals(1, table.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertEquals(0, table.searchBy(0, "two").size());
+		table.close();
+	}
+
+	private char[][] fields(String first)
+	{
+		return new char[][] {Arrays.copyOf(first.toCharArray(), 4), new char[4]};
+	}
+}
\ No newline at end of file
@@ -0,0 +1,161 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads of a MappedBlockStore from many threads at once, while the file grows, and what
+ * reads allocate once every block has been read.
+ */
+public class MappedBlockStoreTest
+{
+
+	private static final int BLOCK = 4096;
+	private static final int BLOCKS = 1024; //Four segments
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void concurrentReadersSeeTheirOwnBlocks() throws Exception
+	{
+		RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "blocks"), "rw");
+		MappedBlockStore store = new MappedBlockStore(file.getChannel(), 0, BLOCK);
+		ExecutorService readers = Executors.newFixedThreadPool(8);
+		try
+		{
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < BLOCKS; i++)
+			{
+				byte data[] = new byte[BLOCK];
+				data[0] = (byte) i;
+				data[BLOCK - 1] = (byte) (i >> 8);
+				store.write((long) i * BLOCK, data);
+				final long addr = (long) i * BLOCK;
+				results.add(readers.submit(new Callable<Integer>()
+				{
+					public Integer call() throws Exception
+					{
+						ByteBuffer block = store.read(addr);
+						return (block.get(0) & 0xff) | (block.get(BLOCK - 1) & 0xff) << 8 | block.remaining() << 16;
+					}
+				}));
+			}
+			for (int i = 0; i < BLOCKS; i++)
+			{
+				assertEquals(i | BLOCK << 16, (int) results.get(i).get(10, TimeUnit.SECONDS));
+			}
+			assertEquals((long) BLOCKS * BLOCK, store.length());
+		}
+		finally
+		{
+			readers.shutdownNow();
+			store.close();
+			file.close();
+		}
+	}
+
+	@Test
+	public void repeatedReadsAllocateNothing() throws Exception
+	{
+		RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "blocks"), "rw");
+		MappedBlockStore store = new MappedBlockStore(file.getChannel(), 0, BLOCK);
+		try
+		{
+			for (int i = 0; i < BLOCKS; i++)
+			{
+				store.write((long) i * BLOCK, new byte[BLOCK]);
+				store.read((long) i * BLOCK);
+			}
+			final long reads = 100000;
+			long bytes = allocated(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						long sum = 0;
+						for (long i = 0; i < reads; i++)
+						{
+							sum += store.read(i % BLOCKS * BLOCK).getLong(8);
+						}
+						assertEquals(0, sum);
+					}
+					catch (Exception e)
+					{
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			assertTrue(bytes + " bytes allocated by " + reads + " reads", bytes < reads);
+		}
+		finally
+		{
+			store.close();
+			file.close();
+		}
+	}
+
+	@Test
+	public void mappedSearchAllocatesNothing() throws Exception
+	{
+		final BTree tree = new BTree(new File(folder.getRoot(), "tree").getPath(), 4096, true);
+		final int keys = 10000;
+		for (int k = 0; k < keys; k++)
+		{
+			tree.insert(k, k + 1);
+		}
+		for (int k = 0; k < keys; k++)
+		{
+			tree.search(k);
+		}
+		long bytes = allocated(new Runnable()
+		{
+			public void run()
+			{
+				for (int i = 0; i < 10; i++)
+				{
+					for (int k = 0; k < keys; k++)
+					{
+						assertEquals(k + 1, tree.search(k));
+					}
+				}
+			}
+		});
+		tree.close();
+		assertTrue(bytes + " bytes allocated by " + 10 * keys + " searches", bytes < 10 * keys);
+	}
+
+	/**
+	 * @return The bytes the current thread allocated while running task
+	 */
+	private static long allocated(Runnable task)
+	{
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		task.run();
+		return threads.getThreadAllocatedBytes(id) - before;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The nodes inserts and removes read, through splits, borrows and merges on small orders.
+ */
+public class NodeReadsTest
+{
+
+	private static final int KEYS = 5000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void smallNodes()
+	{
+		checkBounds(60);
+	}
+
+	@Test
+	public void largerNodes()
+	{
+		checkBounds(132);
+	}
+
+	/**
+	 * Inserts and then removes keys in random order, checking each insert reads at most the
+	 * height of the tree and each remove at most 3 * height - 1 nodes
+	 */
+	private void checkBounds(int blockSize)
+	{
+		BTree tree = new BTree(new File(folder.getRoot(), "reads" + blockSize).getPath(), blockSize);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int k = 0; k < KEYS; k++)
+		{
+			keys.add(k);
+		}
+		Random r = new Random(blockSize);
+		Collections.shuffle(keys, r);
+		for (int k : keys)
+		{
+			int height = Math.max(tree.getHeight(), 1);
+			long before = tree.getNodeReads();
+			assertTrue(tree.insert(k, k + 1));
+			long reads = tree.getNodeReads() - before;
+			assertTrue("insert " + k + " read " + reads + " nodes at height " + height, reads <= height);
+		}
+		Collections.shuffle(keys, r);
+		for (int k : keys)
+		{
+			int height = tree.getHeight();
+			long before = tree.getNodeReads();
+			assertEquals(k + 1, tree.remove(k));
+			long reads = tree.getNodeReads() - before;
+			assertTrue("remove " + k + " read " + reads + " nodes at height " + height, reads <= 3 * height - 1);
+		}
+		assertTrue(tree.getHeight() <= 1);
+		tree.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Opens files written before leaves were linked, which upgrades them, and uses them from
+ * a thread other than the one that opened them.
+ */
+public class OldFormatTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ExecutorService other;
+	private String name; //f1 copied into the temporary folder
+
+	@Before
+	public void setUp() throws IOException
+	{
+		other = Executors.newSingleThreadExecutor();
+		for (String ext : new String[] {".tree", ".table"})
+		{
+			Files.copy(new File("../testdata/f1" + ext).toPath(), new File(folder.getRoot(), "f1" + ext).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		name = new File(folder.getRoot(), "f1").getPath();
+	}
+
+	@After
+	public void tearDown()
+	{
+		other.shutdownNow();
+	}
+
+	@Test
+	public void upgradedTreeIsUsableFromAnotherThread() throws Exception
+	{
+		BTree tree = new BTree(name);
+		int keys = onOtherThread(() -> tree.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertTrue(keys > 0);
+		assertTrue(onOtherThread(() -> tree.insert(123456789, 8)));
+		assertEquals(8L, (long) onOtherThread(() -> tree.search(123456789)));
+		assertEquals(keys + 1, (int) onOtherThread(() -> tree.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size()));
+		assertEquals(8L, (long) onOtherThread(() -> tree.remove(123456789)));
+		tree.close();
+	}
+
+	@Test
+	public void upgradedTableIsUsableFromAnotherThread() throws Exception
+	{
+		DBTable table = new DBTable(name);
+		int rows = onOtherThread(() -> table.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertTrue(rows > 0);
+		char fields[][] = new char[2][];
+		fields[0] = "first".toCharArray();
+		fields[1] = "last".toCharArray();
+		for (int i = 0; i < fields.length; i++)
+		{
+			fields[i] = Arrays.copyOf(fields[i], i == 0 ? 15 : 30);
+		}
+		assertTrue(onOtherThread(() -> table.insert(123456789, fields)));
+		LinkedList<String> row = onOtherThread(() -> table.search(123456789));
+		assertEquals("first", row.getFirst().trim());
+		assertTrue(onOtherThread(() -> table.remove(123456789)));
+		assertFalse(onOtherThread(() -> table.remove(123456789)));
+		table.close();
+	}
+
+	/**
+	 * Runs a call on the other thread, failing the test if it does not finish
+	 */
+	private <T> T onOtherThread(Callable<T> call)
+			throws InterruptedException, ExecutionException, TimeoutException
+	{
+		Future<T> result = other.submit(call);
+		return result.get(10, TimeUnit.SECONDS);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+/**
+ * @author Lucas Rappette
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Attaching and detaching a WriteAheadLog from a BTree.
+ */
+public class SetLogTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void detachingLogFromMappedTreeLeavesItUsable() throws Exception
+	{
+		BTree tree = new BTree(new File(folder.getRoot(), "mapped").getPath(), 60, true);
+		tree.setLog(null);
+		assertTrue(tree.insert(5, 50));
+		assertEquals(50L, tree.search(5));
+		tree.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void attachingLogToMappedTreeFails() throws Exception
+	{
+		BTree tree = new BTree(new File(folder.getRoot(), "mapped").getPath(), 60, true);
+		WriteAheadLog log = new WriteAheadLog(new File(folder.getRoot(), "mapped.log").getPath());
+		try
+		{
+			tree.setLog(log);
+		}
+		finally
+		{
+			log.close();
+			tree.close();
+		}
+	}
+}
\ No newline at end of file